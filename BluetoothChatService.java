@@ -11,7 +11,6 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.util.UUID;
 
 public class BluetoothChatService {
@@ -36,9 +35,26 @@ public class BluetoothChatService {
 
     ProgressDialog mProgressDialog;
 
+    // Optional, lets inquiry scans back off while a link is busy
+    private DiscoveryScheduler mDiscoveryScheduler;
+
+    // Receives the messages read from the connected device
+    private volatile OnMessageListener mOnMessageListener;
+
+    // Every message sent or received, what history sync compares
+    private volatile MessageStore mMessageStore = new MessageStore();
+
     private final BluetoothAdapter mBluetoothAdapter;
     Context mContext;
 
+    /**
+     * Callback for messages read from the connected device. It is called
+     * on the ConnectedThread, not the main thread.
+     */
+    public interface OnMessageListener {
+        void onMessage(ChatMessage message);
+    }
+
     // BluetoothChatService constructor
     public BluetoothChatService(Context context) {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -140,7 +156,7 @@ public class BluetoothChatService {
             mSocket = tmp;
 
             // Always cancel discovery as it is memory intensive
-            mBluetoothAdapter.cancelDiscovery();
+            pauseDiscovery();
 
             // Make a connection to the BluetoothSocket
             // This is a blocking call and will only return on
@@ -149,7 +165,13 @@ public class BluetoothChatService {
                 mSocket.connect();
 
                 Log.d(TAG, "run: ConnectThread connected");
+                if (mDiscoveryScheduler != null) {
+                    mDiscoveryScheduler.reportConnectResult(btDevice, true);
+                }
             } catch (IOException e) {
+                if (mDiscoveryScheduler != null) {
+                    mDiscoveryScheduler.reportConnectResult(btDevice, false);
+                }
 
                 try {
                     // Close the socket
@@ -175,10 +197,19 @@ public class BluetoothChatService {
         }
     }
 
-    private class ConnectedThread extends Thread{
+    /**
+     * This thread runs during a connection with a remote device. The
+     * stream handling lives in ChatLink; this thread owns the socket and
+     * only reads. Incoming frames are handled by a ChatSession on a
+     * consumer thread of the link's InboundRingBuffer.
+     *
+     * On connect both sides run HistorySync to pull the messages they
+     * missed while apart.
+     */
+    private class ConnectedThread extends Thread implements ChatLink.Listener{
         private final BluetoothSocket btSocket1;
-        private final InputStream mInputStream;
-        private final OutputStream mOutputStream;
+        private final ChatLink mLink;
+        private final ChatSession mSession;
 
         public ConnectedThread(BluetoothSocket socket){
             Log.d(TAG, "ConnectedThread: started.");
@@ -201,36 +232,81 @@ public class BluetoothChatService {
                 e.printStackTrace();
             }
 
-            mInputStream = tmpIn;
-            mOutputStream = tmpOut;
+            mLink = new ChatLink(tmpIn, tmpOut, this);
+            // Blocking wait uses no CPU while the link is idle
+            mSession = new ChatSession("ConnectedThread-messages", mLink, mMessageStore,
+                    new InboundRingBuffer.BlockingWaitStrategy(), new SessionListener());
         }
 
         public void run(){
-            // Byte array object to get the input from the InputStream
-            byte[] buffer = new byte[1024];
-            // Bytes returned from read()
-            int bytes;
+            if (mDiscoveryScheduler != null) {
+                mDiscoveryScheduler.onLinkOpened();
+            }
+
+            try {
+                mSession.startSync();
+            } catch (IOException e) {
+                Log.e(TAG, "run: could not start history sync " + e.getMessage());
+            }
 
             // Keep listening to the InputStream until an exception occurs
-            while(true){
-                // Read from the InputStream
-                try {
-                    bytes = mInputStream.read(buffer);
-                    String incomingMessage = new String(buffer, 0, bytes);
-                    Log.d(TAG, "InputStream: " + incomingMessage);
-                } catch (IOException e) {
-                    Log.e(TAG, "write: error reading InputStream" + e.getMessage());
-                    break;
+            mLink.runReadLoop();
+
+            if (mDiscoveryScheduler != null) {
+                mDiscoveryScheduler.onLinkClosed();
+            }
+        }
+
+        private class SessionListener implements ChatSession.Listener {
+            @Override
+            public void onActivity() {
+                if (mDiscoveryScheduler != null) {
+                    mDiscoveryScheduler.noteLinkActivity();
                 }
             }
+
+            @Override
+            public void onMessage(ChatMessage message) {
+                Log.d(TAG, "InputStream: " + message.getText());
+                deliver(message);
+            }
+
+            @Override
+            public void onSyncComplete(int received) {
+                Log.d(TAG, "SessionListener: history sync complete, received " + received + " messages");
+            }
+
+            @Override
+            public void onFailed(String reason) {
+                Log.e(TAG, "SessionListener: " + reason);
+                cancel();
+            }
         }
 
-        // Call this from the MainActivity to write data to the remote device
+        private void deliver(ChatMessage message) {
+            OnMessageListener listener = mOnMessageListener;
+            if (listener != null) {
+                listener.onMessage(message);
+            }
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (cause != null) {
+                Log.e(TAG, "write: error reading InputStream" + cause.getMessage());
+            } else {
+                Log.d(TAG, "run: InputStream closed by remote device.");
+            }
+        }
+
+        // Writes one complete frame to the remote device, see ChatProtocol
         public void write(byte[] bytes){
-            String text = new String(bytes, Charset.defaultCharset());
-            Log.d(TAG, "write: writing to OutputStream: " + text);
+            Log.d(TAG, "write: writing " + bytes.length + " bytes to OutputStream");
+            if (mDiscoveryScheduler != null) {
+                mDiscoveryScheduler.noteLinkActivity();
+            }
             try {
-                mOutputStream.write(bytes);
+                mLink.write(bytes);
             } catch (IOException e) {
                 Log.e(TAG, "write: error writing to OutputStream " + e.getMessage());
             }
@@ -248,6 +324,38 @@ public class BluetoothChatService {
         }
     }
 
+    /**
+     * Let the chat service pause inquiry scans before connecting and
+     * report link traffic so scans back off while data is flowing.
+     */
+    public void setDiscoveryScheduler(DiscoveryScheduler scheduler) {
+        mDiscoveryScheduler = scheduler;
+    }
+
+    /**
+     * Share a MessageStore across service instances so history survives
+     * reconnects. Call before connecting.
+     */
+    public void setMessageStore(MessageStore store) {
+        mMessageStore = store;
+    }
+
+    /**
+     * Set who gets the messages read from the connected device.
+     */
+    public void setOnMessageListener(OnMessageListener listener) {
+        mOnMessageListener = listener;
+    }
+
+    // Stop inquiry through the scheduler when there is one
+    private void pauseDiscovery() {
+        if (mDiscoveryScheduler != null) {
+            mDiscoveryScheduler.pause();
+        } else {
+            mBluetoothAdapter.cancelDiscovery();
+        }
+    }
+
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume()
@@ -290,12 +398,33 @@ public class BluetoothChatService {
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Send a chat message to the connected device and keep it in the
+     * MessageStore for later history syncs.
+     *
+     * @return the message as sent, for display, or null if the text is
+     *         longer than ChatProtocol.MAX_TEXT_SIZE
+     */
+    public ChatMessage sendMessage(String text) {
+        if (!ChatProtocol.fits(text)) {
+            Log.e(TAG, "sendMessage: text too long to send");
+            return null;
+        }
+        ChatMessage message = new ChatMessage(mBluetoothAdapter.getName(), text,
+                System.currentTimeMillis(), true);
+        mMessageStore.add(message);
+        write(ChatProtocol.encodeChat(message));
+        return message;
+    }
+
+    /**
+     * Write to the ConnectedThread in an unsynchronized manner. Private so
+     * only whole ChatProtocol frames reach the link, raw bytes would put the
+     * peer's FrameDecoder out of step.
      *
-     * @param out The bytes to write
+     * @param out A complete frame
      * @see ConnectedThread#write(byte[])
      */
-    public void write(byte[] out) {
+    private void write(byte[] out) {
         // Create temporary object
         ConnectedThread r;
 
@@ -0,0 +1,214 @@
+package com.example.btchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChatLink holds the stream side of a connection: the blocking read loop
+ * and a writer thread. ConnectedThread wraps one around the streams of its
+ * BluetoothSocket.
+ *
+ * The read loop does nothing but read. Every read goes straight into a
+ * preallocated event of an InboundRingBuffer; whatever handles the bytes is
+ * added with addConsumer() and runs on its own thread, so slow handlers
+ * never hold up the socket.
+ *
+ * write() only queues, the writer thread does the blocking socket write.
+ * A consumer answering the peer therefore never stops reading, otherwise
+ * two devices sending each other more than their rings hold would both
+ * wait in write() for a reader that waits for them. The queue is bounded
+ * by MAX_QUEUED_BYTES; past that write() fails rather than blocks.
+ *
+ * It only uses plain java.io so the same code can be driven headless on a
+ * desktop JVM with any InputStream/OutputStream pair standing in for an
+ * RFCOMM socket (see SoakTest).
+ */
+public class ChatLink {
+
+    // Size of the read buffer, same as a single RFCOMM read
+    public static final int BUFFER_SIZE = 1024;
+    // Reads buffered between the read loop and the slowest consumer
+    public static final int RING_SIZE = 256;
+    // Bytes queued for the writer thread before write() fails
+    public static final int MAX_QUEUED_BYTES = 2 * 1024 * 1024;
+    // How long the read loop lets consumers drain before the writer stops
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+    // Queued to stop the writer thread after what is already queued
+    private static final byte[] END_OF_WRITES = new byte[0];
+
+    /**
+     * Called on the thread that ran runReadLoop().
+     */
+    public interface Listener {
+        /**
+         * The read loop ended, either at end of stream (cause is null) or
+         * because of an error.
+         */
+        void onClosed(IOException cause);
+    }
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final Listener mListener;
+    private final InboundRingBuffer mInbound = new InboundRingBuffer(RING_SIZE, BUFFER_SIZE);
+    private final LinkedBlockingQueue<byte[]> mWriteQueue = new LinkedBlockingQueue<>();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final Thread mWriter;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    public ChatLink(InputStream in, OutputStream out, Listener listener) {
+        mInputStream = in;
+        mOutputStream = out;
+        mListener = listener;
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriteLoop();
+            }
+        }, "ChatLink-writer");
+    }
+
+    /**
+     * Add a handler for the bytes this link reads, on its own thread.
+     * Must be called before runReadLoop().
+     *
+     * @param gating    true if reading must wait for this handler instead of
+     *                  letting it fall behind and miss data
+     * @param dependsOn consumers that must be done with an event first
+     */
+    public InboundRingBuffer.Consumer addConsumer(String name, InboundRingBuffer.EventHandler handler,
+                                                  InboundRingBuffer.WaitStrategy waitStrategy, boolean gating,
+                                                  InboundRingBuffer.Consumer... dependsOn) {
+        return mInbound.addConsumer(name, handler, waitStrategy, gating, dependsOn);
+    }
+
+    /**
+     * Keep reading the InputStream until end of stream or an exception.
+     * This is a blocking call, run it on its own thread. Consumers and the
+     * writer are started on entry. On exit consumers get DRAIN_TIMEOUT_MS to
+     * handle what was read, then the writer sends what they queued and stops.
+     */
+    public void runReadLoop() {
+        // Bytes returned from read()
+        int bytes;
+        IOException cause = null;
+
+        mInbound.start();
+        mWriter.start();
+        while (true) {
+            // Read straight into the next event, no copy and no allocation
+            InboundRingBuffer.Event event = mInbound.next();
+            try {
+                bytes = mInputStream.read(event.data);
+            } catch (IOException e) {
+                cause = e;
+                break;
+            }
+            if (bytes < 0) {
+                break;
+            }
+            event.length = bytes;
+            event.timestamp = System.nanoTime();
+            mBytesRead.addAndGet(bytes);
+            mInbound.publish(event);
+        }
+
+        // Let consumers drain what was already read, then stop the writer
+        // once it has sent what they queued
+        mInbound.halt();
+        try {
+            mInbound.join(DRAIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriteQueue.add(END_OF_WRITES);
+        mListener.onClosed(cause);
+    }
+
+    private void runWriteLoop() {
+        try {
+            byte[] bytes;
+            while ((bytes = mWriteQueue.take()) != END_OF_WRITES) {
+                mQueuedBytes.addAndGet(-bytes.length);
+                mOutputStream.write(bytes);
+                mBytesWritten.addAndGet(bytes.length);
+            }
+        } catch (IOException e) {
+            // Ends the read loop too, which reports the failure
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the consumer and writer threads to finish after the read
+     * loop ended.
+     */
+    public void joinConsumers(long millis) throws InterruptedException {
+        mInbound.join(millis);
+        mWriter.join(millis);
+    }
+
+    /**
+     * Queue bytes for the remote device. Never blocks, safe to call from
+     * any thread; each call is written whole and in order. The array is
+     * written later, don't modify it after passing it in.
+     *
+     * @throws IOException if the link is closed or MAX_QUEUED_BYTES are
+     *                     already waiting because the peer stopped reading
+     */
+    public void write(byte[] bytes) throws IOException {
+        if (mClosed) {
+            throw new IOException("link closed");
+        }
+        if (mQueuedBytes.addAndGet(bytes.length) > MAX_QUEUED_BYTES) {
+            mQueuedBytes.addAndGet(-bytes.length);
+            throw new IOException("write queue full, remote device is not reading");
+        }
+        mWriteQueue.add(bytes);
+    }
+
+    /**
+     * Copy part of an array, such as an event buffer, and queue it.
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        write(copy);
+    }
+
+    /**
+     * Close both streams, which also ends the read loop. Writes still
+     * queued are dropped.
+     */
+    public void close() {
+        mClosed = true;
+        mWriteQueue.clear();
+        mWriteQueue.add(END_OF_WRITES);
+        try {
+            mInputStream.close();
+        } catch (IOException e) {
+            // Nothing left to do with a stream that fails to close
+        }
+        try {
+            mOutputStream.close();
+        } catch (IOException e) {
+            // Nothing left to do with a stream that fails to close
+        }
+    }
+
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.btchat;
+
+import java.security.SecureRandom;
+
+/**
+ * A single chat message, sent or received. Immutable so it can be handed
+ * between the connection threads and the main thread without copying.
+ */
+public class ChatMessage {
+
+    // Random ids are unique across devices without any coordination
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final long mId;
+    private final String mSender;
+    private final String mText;
+    private final long mTimestamp;
+    private final boolean mOutgoing;
+
+    /**
+     * Create a new message with a fresh id.
+     */
+    public ChatMessage(String sender, String text, long timestamp, boolean outgoing) {
+        this(sRandom.nextLong(), sender, text, timestamp, outgoing);
+    }
+
+    /**
+     * Recreate a message that already has an id, e.g. one read from the
+     * remote device. A null sender or text is stored as "", the adapter
+     * name a sender comes from can be null.
+     */
+    public ChatMessage(long id, String sender, String text, long timestamp, boolean outgoing) {
+        mId = id;
+        mSender = sender != null ? sender : "";
+        mText = text != null ? text : "";
+        mTimestamp = timestamp;
+        mOutgoing = outgoing;
+    }
+
+    /**
+     * Random 64 bit identity, the same on every device that has the
+     * message. Used by list diffing and history sync.
+     */
+    public long getId() {
+        return mId;
+    }
+
+    public String getSender() {
+        return mSender;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * Wall clock time in milliseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public boolean isOutgoing() {
+        return mOutgoing;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChatMessage)) {
+            return false;
+        }
+        ChatMessage other = (ChatMessage) o;
+        return mId == other.mId
+                && mTimestamp == other.mTimestamp
+                && mOutgoing == other.mOutgoing
+                && mSender.equals(other.mSender)
+                && mText.equals(other.mText);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mId ^ (mId >>> 32));
+    }
+}
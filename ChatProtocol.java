@@ -0,0 +1,209 @@
+package com.example.btchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format between two devices. Every write is a frame:
+ *
+ *   [type: 1 byte][body length: 4 bytes][body]
+ *
+ * so messages survive RFCOMM splitting or merging reads, and chat and
+ * history sync can share one connection.
+ */
+public final class ChatProtocol {
+
+    // A chat message: id, timestamp, sender, text
+    public static final int TYPE_CHAT = 1;
+    // History sync, see HistorySync
+    public static final int TYPE_SUMMARY_REQUEST = 2;
+    public static final int TYPE_SUMMARY_RESPONSE = 3;
+    public static final int TYPE_IDS_REQUEST = 4;
+    public static final int TYPE_IDS_RESPONSE = 5;
+    public static final int TYPE_FETCH_REQUEST = 6;
+    public static final int TYPE_FETCH_RESPONSE = 7;
+
+    public static final int HEADER_SIZE = 5;
+    // Anything larger means the stream is out of step
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+    // Longest sender or text in UTF-8 bytes, so one message is always far
+    // smaller than a frame
+    public static final int MAX_TEXT_SIZE = 32 * 1024;
+
+    private ChatProtocol() {
+    }
+
+    /**
+     * Receives decoded frames. The body array is reused, read it before
+     * returning.
+     */
+    public interface FrameListener {
+        void onFrame(int type, byte[] body, int length) throws IOException;
+    }
+
+    /**
+     * Reassembles frames from reads of any size.
+     */
+    public static class FrameDecoder {
+        private final FrameListener mListener;
+        private final byte[] mHeader = new byte[HEADER_SIZE];
+        private int mHeaderFill;
+        private byte[] mBody = new byte[256];
+        private int mBodyLength = -1;
+        private int mBodyFill;
+        // Set once feed() has failed, the stream is out of step for good
+        private boolean mFailed;
+
+        public FrameDecoder(FrameListener listener) {
+            mListener = listener;
+        }
+
+        /**
+         * @throws IOException if a frame is malformed or the listener fails;
+         *                     the stream can't be trusted after that and
+         *                     every later call throws too
+         */
+        public void feed(byte[] buffer, int offset, int length) throws IOException {
+            if (mFailed) {
+                throw new IOException("stream already failed");
+            }
+            try {
+                decode(buffer, offset, length);
+            } catch (IOException | RuntimeException e) {
+                mFailed = true;
+                mHeaderFill = 0;
+                mBodyLength = -1;
+                throw e;
+            }
+        }
+
+        private void decode(byte[] buffer, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                if (mBodyLength < 0) {
+                    int chunk = Math.min(HEADER_SIZE - mHeaderFill, end - offset);
+                    System.arraycopy(buffer, offset, mHeader, mHeaderFill, chunk);
+                    mHeaderFill += chunk;
+                    offset += chunk;
+                    if (mHeaderFill < HEADER_SIZE) {
+                        return;
+                    }
+
+                    mBodyLength = ((mHeader[1] & 0xff) << 24) | ((mHeader[2] & 0xff) << 16)
+                            | ((mHeader[3] & 0xff) << 8) | (mHeader[4] & 0xff);
+                    if (mBodyLength < 0 || mBodyLength > MAX_BODY_SIZE) {
+                        throw new IOException("bad frame length " + mBodyLength);
+                    }
+                    if (mBody.length < mBodyLength) {
+                        mBody = new byte[Math.max(mBodyLength, mBody.length * 2)];
+                    }
+                    mBodyFill = 0;
+                }
+
+                int chunk = Math.min(mBodyLength - mBodyFill, end - offset);
+                System.arraycopy(buffer, offset, mBody, mBodyFill, chunk);
+                mBodyFill += chunk;
+                offset += chunk;
+
+                if (mBodyFill == mBodyLength) {
+                    int type = mHeader[0] & 0xff;
+                    int bodyLength = mBodyLength;
+                    mHeaderFill = 0;
+                    mBodyLength = -1;
+                    mListener.onFrame(type, mBody, bodyLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds one frame. Write the body with the DataOutputStream methods,
+     * then call toFrame().
+     */
+    public static class FrameBuilder extends DataOutputStream {
+        private final int mType;
+
+        public FrameBuilder(int type) {
+            super(new ByteArrayOutputStream());
+            mType = type;
+        }
+
+        public byte[] toFrame() {
+            byte[] body = ((ByteArrayOutputStream) out).toByteArray();
+            byte[] frame = new byte[HEADER_SIZE + body.length];
+            frame[0] = (byte) mType;
+            frame[1] = (byte) (body.length >>> 24);
+            frame[2] = (byte) (body.length >>> 16);
+            frame[3] = (byte) (body.length >>> 8);
+            frame[4] = (byte) body.length;
+            System.arraycopy(body, 0, frame, HEADER_SIZE, body.length);
+            return frame;
+        }
+    }
+
+    public static byte[] encodeChat(ChatMessage message) {
+        FrameBuilder frame = new FrameBuilder(TYPE_CHAT);
+        try {
+            writeMessage(frame, message);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return frame.toFrame();
+    }
+
+    /**
+     * @return true if the text fits in a message, see MAX_TEXT_SIZE
+     */
+    public static boolean fits(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length <= MAX_TEXT_SIZE;
+    }
+
+    /**
+     * Write a message body. Used by chat frames and sync fetch responses.
+     *
+     * @throws IllegalArgumentException if the sender or text doesn't fit()
+     */
+    public static void writeMessage(DataOutputStream out, ChatMessage message) throws IOException {
+        out.writeLong(message.getId());
+        out.writeLong(message.getTimestamp());
+        writeString(out, message.getSender());
+        writeString(out, message.getText());
+    }
+
+    /**
+     * Read a message body written by writeMessage(). Messages read from the
+     * remote device are never outgoing.
+     */
+    public static ChatMessage readMessage(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long timestamp = in.readLong();
+        String sender = readString(in);
+        String text = readString(in);
+        return new ChatMessage(id, sender, text, timestamp, false);
+    }
+
+    // Length prefixed UTF-8. Not writeUTF(), which is limited to 64KB and
+    // uses modified UTF-8
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_TEXT_SIZE) {
+            throw new IllegalArgumentException("text too long: " + bytes.length + " bytes");
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_TEXT_SIZE) {
+            throw new IOException("bad text length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
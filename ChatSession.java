@@ -0,0 +1,138 @@
+package com.example.btchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * What happens to the bytes a connection reads: frames are reassembled,
+ * chat messages go into the MessageStore and sync frames to a HistorySync
+ * with the peer. ConnectedThread runs one per connection.
+ *
+ * It is added to the ChatLink as a gating consumer, so reads are never
+ * dropped under it. Once the stream is out of step it ignores the rest of
+ * what was read and reports Listener.onFailed(); closing the connection is
+ * up to the owner.
+ *
+ * Plain Java like ChatLink, so SoakTest drives the same code headless.
+ */
+public class ChatSession implements InboundRingBuffer.EventHandler, ChatProtocol.FrameListener {
+
+    /**
+     * Called on the session's consumer thread.
+     */
+    public interface Listener {
+        /**
+         * Something was read from the peer.
+         */
+        void onActivity();
+
+        /**
+         * A message from the peer was added to the store, sent live or
+         * pulled in by history sync.
+         */
+        void onMessage(ChatMessage message);
+
+        void onSyncComplete(int received);
+
+        /**
+         * The peer sent something malformed, the connection should be
+         * closed.
+         */
+        void onFailed(String reason);
+    }
+
+    private final ChatLink mLink;
+    private final MessageStore mStore;
+    private final Listener mListener;
+    private final HistorySync mSync;
+    private final ChatProtocol.FrameDecoder mDecoder = new ChatProtocol.FrameDecoder(this);
+    // Set once failed, reads still in the ring are dropped
+    private boolean mFailed;
+
+    /**
+     * Adds the session to the link, so call before ChatLink.runReadLoop().
+     */
+    public ChatSession(String name, ChatLink link, MessageStore store,
+                       InboundRingBuffer.WaitStrategy waitStrategy, Listener listener) {
+        mLink = link;
+        mStore = store;
+        mListener = listener;
+        mSync = new HistorySync(store, new HistorySync.Transport() {
+            @Override
+            public void send(byte[] frame) throws IOException {
+                mLink.write(frame);
+            }
+        }, new SyncListener());
+        link.addConsumer(name, this, waitStrategy, true);
+    }
+
+    /**
+     * Pull what the peer has and this store is missing.
+     */
+    public void startSync() throws IOException {
+        mSync.start();
+    }
+
+    /**
+     * Send a message to the peer. Adding it to the store is up to the
+     * caller.
+     */
+    public void send(ChatMessage message) throws IOException {
+        mLink.write(ChatProtocol.encodeChat(message));
+    }
+
+    @Override
+    public void onEvent(InboundRingBuffer.Event event, long sequence, boolean endOfBatch) {
+        if (mFailed) {
+            return;
+        }
+        mListener.onActivity();
+        try {
+            mDecoder.feed(event.data, 0, event.length);
+        } catch (IOException e) {
+            fail("bad data from remote device: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onFrame(int type, byte[] body, int length) throws IOException {
+        if (type == ChatProtocol.TYPE_CHAT) {
+            ChatMessage message = ChatProtocol.readMessage(
+                    new DataInputStream(new ByteArrayInputStream(body, 0, length)));
+            if (mStore.add(message)) {
+                mListener.onMessage(message);
+            }
+        } else if (HistorySync.isSyncFrame(type)) {
+            mSync.onFrame(type, body, length);
+        }
+        // Anything else is from a newer version of the protocol, skip it
+    }
+
+    @Override
+    public void onOverrun(long missed) {
+        // Gating, so only possible if the ring was misconfigured. Frame
+        // boundaries are lost, the stream can't be trusted any more
+        fail("fell behind, dropped " + missed + " reads");
+    }
+
+    private void fail(String reason) {
+        mFailed = true;
+        mListener.onFailed(reason);
+    }
+
+    private class SyncListener implements HistorySync.Listener {
+        @Override
+        public void onMessagesSynced(List<ChatMessage> messages) {
+            for (ChatMessage message : messages) {
+                mListener.onMessage(message);
+            }
+        }
+
+        @Override
+        public void onSyncComplete(int received) {
+            mListener.onSyncComplete(received);
+        }
+    }
+}
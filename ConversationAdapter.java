@@ -0,0 +1,69 @@
+package com.example.btchat;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+
+/**
+ * Shows the conversation. Lists are submitted whole and diffed off the
+ * main thread by ListAdapter, so only the rows that changed are rebound.
+ */
+public class ConversationAdapter extends ListAdapter<ChatMessage, ConversationAdapter.MessageViewHolder> {
+
+    private static final DiffUtil.ItemCallback<ChatMessage> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<ChatMessage>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+                    return oldItem.getId() == newItem.getId();
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+                    return oldItem.equals(newItem);
+                }
+            };
+
+    public ConversationAdapter() {
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
+    }
+
+    static class MessageViewHolder extends RecyclerView.ViewHolder {
+        private final TextView mSender;
+        private final TextView mText;
+
+        MessageViewHolder(View itemView) {
+            super(itemView);
+            mSender = (TextView) itemView.findViewById(android.R.id.text1);
+            mText = (TextView) itemView.findViewById(android.R.id.text2);
+        }
+    }
+
+    @NonNull
+    @Override
+    public MessageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_2, parent, false);
+        return new MessageViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
+        ChatMessage message = getItem(position);
+
+        holder.mSender.setText(message.isOutgoing() ? "Me" : message.getSender());
+        holder.mText.setText(message.getText());
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.btchat;
+
+import java.util.List;
+
+/**
+ * The visible window of the conversation, read from a MessageStore. The
+ * store is the only copy of the history: it is bounded, so a flood of
+ * messages can never grow the heap past its capacity, and ordered by
+ * timestamp, so messages pulled in by HistorySync show up where they
+ * belong rather than at the bottom.
+ *
+ * Only the newest page of messages is shown at first. loadOlderPage()
+ * widens the visible window towards the oldest kept message as the user
+ * scrolls back.
+ *
+ * Not thread-safe, use it from the main thread (see ConversationUpdater).
+ */
+public class ConversationHistory {
+
+    // Messages added to the visible window per page
+    public static final int PAGE_SIZE = 100;
+
+    private final MessageStore mStore;
+    // How many of the newest messages are visible
+    private int mVisible = PAGE_SIZE;
+
+    public ConversationHistory(MessageStore store) {
+        mStore = store;
+    }
+
+    public int size() {
+        return mStore.size();
+    }
+
+    /**
+     * @return true if there are kept messages outside the visible window
+     */
+    public boolean hasOlder() {
+        return mVisible < mStore.size();
+    }
+
+    /**
+     * Grow the visible window by one page.
+     *
+     * @return true if the window changed
+     */
+    public boolean loadOlderPage() {
+        if (!hasOlder()) {
+            return false;
+        }
+        mVisible = Math.min(mVisible + PAGE_SIZE, mStore.size());
+        return true;
+    }
+
+    /**
+     * Shrink the visible window back to the newest page, used when the
+     * user returns to the bottom of the conversation.
+     */
+    public void resetToNewestPage() {
+        mVisible = PAGE_SIZE;
+    }
+
+    /**
+     * @return a copy of the visible messages, oldest first
+     */
+    public List<ChatMessage> getVisibleMessages() {
+        return mStore.getNewest(mVisible);
+    }
+}
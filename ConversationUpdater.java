@@ -0,0 +1,97 @@
+package com.example.btchat;
+
+import android.view.Choreographer;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts the ConversationHistory on screen as messages are added to its
+ * MessageStore.
+ *
+ * refresh() can be called from any thread at any rate. It only schedules a
+ * Choreographer frame callback, which reads the visible window from the
+ * store once, so the RecyclerView sees at most one list update per display
+ * frame no matter how many messages arrived in between.
+ */
+public class ConversationUpdater implements Choreographer.FrameCallback {
+
+    private final ConversationHistory mHistory;
+    private final ConversationAdapter mAdapter;
+    private final RecyclerView mRecyclerView;
+    private final LinearLayoutManager mLayoutManager;
+
+    // Set while a frame callback is scheduled and not yet run
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean();
+    private final Choreographer mChoreographer;
+
+    /**
+     * Must be created on the main thread.
+     */
+    public ConversationUpdater(RecyclerView recyclerView, ConversationHistory history) {
+        mHistory = history;
+        mRecyclerView = recyclerView;
+        mAdapter = new ConversationAdapter();
+        mLayoutManager = new LinearLayoutManager(recyclerView.getContext());
+        mLayoutManager.setStackFromEnd(true);
+        mChoreographer = Choreographer.getInstance();
+
+        mRecyclerView.setLayoutManager(mLayoutManager);
+        mRecyclerView.setAdapter(mAdapter);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // Reached the top, page in older history
+                if (dy < 0 && mLayoutManager.findFirstVisibleItemPosition() == 0
+                        && mHistory.loadOlderPage()) {
+                    scheduleFrame();
+                }
+            }
+        });
+    }
+
+    /**
+     * Messages were added to the store, redraw on the next frame. Safe to
+     * call from any thread.
+     */
+    public void refresh() {
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            // Choreographer is per thread, hop to the main thread first
+            mRecyclerView.post(new Runnable() {
+                @Override
+                public void run() {
+                    mChoreographer.postFrameCallback(ConversationUpdater.this);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Clear first so messages added while reading get the next frame
+        mFrameScheduled.set(false);
+
+        int last = mAdapter.getItemCount() - 1;
+        final boolean atBottom = last < 0 || mLayoutManager.findLastVisibleItemPosition() >= last;
+
+        if (atBottom) {
+            mHistory.resetToNewestPage();
+        }
+
+        mAdapter.submitList(mHistory.getVisibleMessages(), new Runnable() {
+            @Override
+            public void run() {
+                // Follow new messages only if the user was already at the bottom
+                if (atBottom && mAdapter.getItemCount() > 0) {
+                    mRecyclerView.scrollToPosition(mAdapter.getItemCount() - 1);
+                }
+            }
+        });
+    }
+}
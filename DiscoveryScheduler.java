@@ -0,0 +1,438 @@
+package com.example.btchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DiscoveryScheduler owns every inquiry scan the app makes. Callers ask
+ * for a scan with requestScan() and the scheduler decides when it runs.
+ *
+ * Inquiry shares the radio with open RFCOMM links and hurts their
+ * throughput, so a sweep is split into short windows with gaps between
+ * them. Windows are pushed back while a connected link has carried data
+ * recently, and a running window is cut short as soon as one does.
+ * Requests that arrive while a scan is already running or pending are
+ * collapsed into that scan.
+ *
+ * Devices found during a scan are kept as ranked Candidates (RSSI, last
+ * seen, past connect success) and handed to the Listener.
+ *
+ * Methods must be called from the main thread unless noted otherwise.
+ */
+public class DiscoveryScheduler {
+
+    // Used for Log debugging statements
+    private static final String TAG = "DiscoveryScheduler";
+
+    // Longest time a single inquiry window may keep the radio busy. The
+    // native inquiry runs about 12s, so a sweep of SWEEP_WINDOWS windows
+    // covers about as much inquiry time in short pieces
+    private static final long SCAN_WINDOW_MS = 4000;
+    private static final int SWEEP_WINDOWS = 3;
+    // Air time left to the links between two windows of a sweep
+    private static final long WINDOW_GAP_MS = 1000;
+    // How often a running window checks whether a link became busy
+    private static final long BUSY_CHECK_MS = 500;
+    // A link that moved data within this time counts as busy
+    private static final long LINK_IDLE_MS = 3000;
+    // First and largest delay used when backing off from a busy link
+    private static final long MIN_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 30000;
+    // Candidates not seen for this long are dropped
+    private static final long CANDIDATE_EXPIRY_MS = 5 * 60 * 1000;
+
+    /**
+     * Receives the ranked candidate list every time it changes.
+     */
+    public interface Listener {
+        void onCandidatesChanged(List<Candidate> candidates);
+    }
+
+    /**
+     * A device seen during discovery along with what we know about it.
+     */
+    public static class Candidate {
+        private final BluetoothDevice mDevice;
+        private short mRssi = Short.MIN_VALUE;
+        private long mLastSeen;
+        private int mConnectAttempts;
+        private int mConnectSuccesses;
+
+        private Candidate(BluetoothDevice device) {
+            mDevice = device;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public short getRssi() {
+            return mRssi;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * Higher is better. Signal strength dominates, recently seen
+         * devices and devices we have connected to before are preferred.
+         */
+        public double getScore(long now) {
+            // Map RSSI (roughly -100..-30 dBm) onto 0..1, unknown counts as weakest
+            double signal = mRssi == Short.MIN_VALUE ? 0 : Math.min(1, Math.max(0, (mRssi + 100) / 70.0));
+            // Linear decay over the expiry period
+            double freshness = Math.max(0, 1 - (now - mLastSeen) / (double) CANDIDATE_EXPIRY_MS);
+            // Laplace smoothed so untried devices start at 0.5
+            double reliability = (mConnectSuccesses + 1) / (double) (mConnectAttempts + 2);
+
+            return 0.5 * signal + 0.2 * freshness + 0.3 * reliability;
+        }
+    }
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+
+    // Candidates keyed by device address
+    private final HashMap<String, Candidate> mCandidates = new HashMap<>();
+
+    // Scan state, only touched on the main thread
+    private boolean mScanPending;
+    private boolean mScanning;
+    // Set once our own ACTION_DISCOVERY_STARTED arrives, so the FINISHED of
+    // a scan we cancelled is not mistaken for the end of ours
+    private boolean mOwnScanStarted;
+    // Windows left in the current sweep, including the running one
+    private int mWindowsLeft;
+    private long mBackoffMs = MIN_BACKOFF_MS;
+    private boolean mRegistered;
+
+    // Written by connection threads, read on the main thread
+    private volatile long mLastLinkActivity;
+    private final AtomicInteger mActiveLinks = new AtomicInteger();
+
+    public DiscoveryScheduler(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    /**
+     * Broadcast Receiver for devices found and the start and end of an
+     * inquiry window.
+     */
+    private final BroadcastReceiver mDiscoveryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+
+            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                onDeviceFound(device, rssi);
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
+                if (mScanning) {
+                    mOwnScanStarted = true;
+                }
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                if (!mScanning || !mOwnScanStarted) {
+                    Log.d(TAG, "onReceive: ignoring discovery finished for another scan.");
+                    return;
+                }
+                Log.d(TAG, "onReceive: discovery finished.");
+                endWindow();
+            }
+        }
+    };
+
+    private final Runnable mStartScan = new Runnable() {
+        @Override
+        public void run() {
+            startScanIfIdle();
+        }
+    };
+
+    private final Runnable mEndScan = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "mEndScan: scan window elapsed.");
+            mBluetoothAdapter.cancelDiscovery();
+            endWindow();
+        }
+    };
+
+    private final Runnable mBusyCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning) {
+                return;
+            }
+            if (isLinkBusy()) {
+                Log.d(TAG, "mBusyCheck: link became busy, ending scan window.");
+                interruptWindow();
+            } else {
+                mHandler.postDelayed(mBusyCheck, BUSY_CHECK_MS);
+            }
+        }
+    };
+
+    /**
+     * Register the discovery receiver. Call from the Activity onCreate().
+     */
+    public void register() {
+        if (mRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        mContext.registerReceiver(mDiscoveryReceiver, filter);
+        mRegistered = true;
+    }
+
+    /**
+     * Stop any scan and unregister. Call from the Activity onDestroy().
+     */
+    public void unregister() {
+        mHandler.removeCallbacks(mStartScan);
+        mScanPending = false;
+        mWindowsLeft = 0;
+        if (mScanning) {
+            mBluetoothAdapter.cancelDiscovery();
+            onScanEnded();
+        }
+        if (mRegistered) {
+            mContext.unregisterReceiver(mDiscoveryReceiver);
+            mRegistered = false;
+        }
+    }
+
+    /**
+     * Ask for a sweep. Does nothing if a sweep is already running or
+     * pending; otherwise the first window starts now or once links go idle.
+     */
+    public void requestScan() {
+        if (mScanning || mScanPending) {
+            Log.d(TAG, "requestScan: collapsed into the current scan.");
+            return;
+        }
+        mWindowsLeft = SWEEP_WINDOWS;
+        mScanPending = true;
+        mBackoffMs = MIN_BACKOFF_MS;
+        mHandler.post(mStartScan);
+    }
+
+    /**
+     * Thread-safe. Stop the current scan and drop any pending one. Used
+     * before opening an RFCOMM connection, which fails or crawls during
+     * inquiry.
+     */
+    public void pause() {
+        // cancelDiscovery() is safe from any thread, do it right away so
+        // the caller's connect() does not race the inquiry
+        mBluetoothAdapter.cancelDiscovery();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "pause: discovery paused.");
+                mHandler.removeCallbacks(mStartScan);
+                mScanPending = false;
+                mWindowsLeft = 0;
+                onScanEnded();
+            }
+        });
+    }
+
+    /**
+     * Thread-safe. Connection threads call this whenever a link reads or
+     * writes so scans keep out of the way of live traffic.
+     */
+    public void noteLinkActivity() {
+        mLastLinkActivity = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Thread-safe. Track how many RFCOMM links are currently open.
+     */
+    public void onLinkOpened() {
+        mActiveLinks.incrementAndGet();
+        noteLinkActivity();
+    }
+
+    public void onLinkClosed() {
+        mActiveLinks.decrementAndGet();
+    }
+
+    /**
+     * Thread-safe. Record the outcome of a connection attempt so the
+     * candidate ranking can favour devices that connect reliably.
+     */
+    public void reportConnectResult(final BluetoothDevice device, final boolean success) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Candidate candidate = getOrCreate(device);
+                candidate.mConnectAttempts++;
+                if (success) {
+                    candidate.mConnectSuccesses++;
+                }
+                publishCandidates();
+            }
+        });
+    }
+
+    /**
+     * Drop candidates not seen for CANDIDATE_EXPIRY_MS, along with their
+     * connect history.
+     *
+     * @return the current candidates, best first
+     */
+    public List<Candidate> getCandidates() {
+        long now = SystemClock.elapsedRealtime();
+
+        ArrayList<Candidate> ranked = new ArrayList<>();
+        Iterator<Candidate> it = mCandidates.values().iterator();
+        while (it.hasNext()) {
+            Candidate candidate = it.next();
+            if (candidate.mLastSeen > 0 && now - candidate.mLastSeen < CANDIDATE_EXPIRY_MS) {
+                ranked.add(candidate);
+            } else {
+                it.remove();
+            }
+        }
+
+        final HashMap<Candidate, Double> scores = new HashMap<>();
+        for (Candidate candidate : ranked) {
+            scores.put(candidate, candidate.getScore(now));
+        }
+        Collections.sort(ranked, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        return ranked;
+    }
+
+    private boolean isLinkBusy() {
+        return mActiveLinks.get() > 0
+                && SystemClock.elapsedRealtime() - mLastLinkActivity < LINK_IDLE_MS;
+    }
+
+    private void startScanIfIdle() {
+        if (!mScanPending || mScanning) {
+            return;
+        }
+        if (isLinkBusy()) {
+            // Exponential back off while data is flowing
+            Log.d(TAG, "startScanIfIdle: link busy, retrying in " + mBackoffMs + "ms.");
+            mHandler.postDelayed(mStartScan, mBackoffMs);
+            mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+            return;
+        }
+
+        // Discovery may have been started outside the scheduler
+        if (mBluetoothAdapter.isDiscovering()) {
+            mBluetoothAdapter.cancelDiscovery();
+        }
+
+        Log.d(TAG, "startScanIfIdle: starting discovery.");
+        if (!mBluetoothAdapter.startDiscovery()) {
+            Log.e(TAG, "startScanIfIdle: startDiscovery failed.");
+            mScanPending = false;
+            mWindowsLeft = 0;
+            return;
+        }
+        mScanPending = false;
+        mScanning = true;
+        mOwnScanStarted = false;
+        mHandler.postDelayed(mEndScan, SCAN_WINDOW_MS);
+        mHandler.postDelayed(mBusyCheck, BUSY_CHECK_MS);
+    }
+
+    /**
+     * The window ran its course, start the next one of the sweep after a
+     * gap that leaves the links some air time.
+     */
+    private void endWindow() {
+        onScanEnded();
+        mWindowsLeft--;
+        if (mWindowsLeft > 0) {
+            mScanPending = true;
+            mHandler.postDelayed(mStartScan, WINDOW_GAP_MS);
+        }
+    }
+
+    /**
+     * A link got busy during the window. Stop now and retry the same
+     * window once the links are idle again.
+     */
+    private void interruptWindow() {
+        mBluetoothAdapter.cancelDiscovery();
+        onScanEnded();
+        mScanPending = true;
+        mHandler.postDelayed(mStartScan, mBackoffMs);
+    }
+
+    private void onScanEnded() {
+        mHandler.removeCallbacks(mEndScan);
+        mHandler.removeCallbacks(mBusyCheck);
+        mScanning = false;
+        mOwnScanStarted = false;
+        mBackoffMs = MIN_BACKOFF_MS;
+    }
+
+    private void onDeviceFound(BluetoothDevice device, short rssi) {
+        if (device == null) {
+            return;
+        }
+        Log.d(TAG, "onDeviceFound: " + device.getAddress() + " rssi " + rssi);
+
+        Candidate candidate = getOrCreate(device);
+        candidate.mLastSeen = SystemClock.elapsedRealtime();
+        if (rssi != Short.MIN_VALUE) {
+            candidate.mRssi = rssi;
+        }
+        publishCandidates();
+
+        // Stop early if the peer traffic picked up while we were scanning,
+        // without waiting for the next mBusyCheck
+        if (mScanning && isLinkBusy()) {
+            Log.d(TAG, "onDeviceFound: link became busy, ending scan window.");
+            interruptWindow();
+        }
+    }
+
+    private Candidate getOrCreate(BluetoothDevice device) {
+        Candidate candidate = mCandidates.get(device.getAddress());
+        if (candidate == null) {
+            candidate = new Candidate(device);
+            mCandidates.put(device.getAddress(), candidate);
+        }
+        return candidate;
+    }
+
+    private void publishCandidates() {
+        if (mListener != null) {
+            mListener.onCandidatesChanged(getCandidates());
+        }
+    }
+}
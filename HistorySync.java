@@ -0,0 +1,329 @@
+package com.example.btchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Anti-entropy history sync, run by both devices when they connect. Each
+ * side pulls what it is missing from the other, so after both finish they
+ * hold the same messages (within MessageStore retention).
+ *
+ * Uses the MessageStore summary tree, Merkle style:
+ *
+ * 1. Ask the peer for the count and digest of some buckets, starting with
+ *    the root. Buckets that match the local summary are done.
+ * 2. A bucket that differs is split into its FANOUT children and step 1
+ *    repeats for them, unless the peer has few messages in it (LEAF_SIZE)
+ *    or it is at MAX_LEVEL. Then the peer's ids in it are requested.
+ * 3. Ids not held locally are fetched in batches of FETCH_BATCH, with up
+ *    to FETCH_WINDOW requests in flight so the link stays busy. A response
+ *    stops at FETCH_RESPONSE_SIZE bytes and says how many of the requested
+ *    ids it covered; the rest are asked for again.
+ *
+ * All buckets of one level go out in a single request, so the number of
+ * round trips is bounded by the tree depth. Only differing buckets are
+ * descended into and only missing messages are sent, so the cost grows with
+ * the difference, not with the history size.
+ *
+ * Frames are handled on the link's consumer thread and sent through the
+ * Transport; methods are synchronized because start() runs elsewhere.
+ */
+public class HistorySync {
+
+    // Peer bucket size at which ids are listed instead of recursing
+    public static final int LEAF_SIZE = 32;
+    // Messages per fetch request and fetch requests in flight
+    public static final int FETCH_BATCH = 16;
+    public static final int FETCH_WINDOW = 4;
+    // Most message bytes in one fetch response. Always holds at least one
+    // message, see ChatProtocol.MAX_TEXT_SIZE
+    public static final int FETCH_RESPONSE_SIZE = 256 * 1024;
+
+    /**
+     * Sends a complete frame to the peer.
+     */
+    public interface Transport {
+        void send(byte[] frame) throws IOException;
+    }
+
+    /**
+     * Called on the thread handling frames.
+     */
+    public interface Listener {
+        /**
+         * Messages pulled from the peer and newly added to the store.
+         */
+        void onMessagesSynced(List<ChatMessage> messages);
+
+        /**
+         * This side has pulled everything it was missing.
+         */
+        void onSyncComplete(int received);
+    }
+
+    private final MessageStore mStore;
+    private final Transport mTransport;
+    private final Listener mListener;
+
+    // Requests sent and not yet answered
+    private int mPendingSummaries;
+    private int mPendingIds;
+    // Ids of each fetch request in flight, answered in order
+    private final ArrayDeque<long[]> mPendingFetches = new ArrayDeque<>();
+    private final ArrayDeque<Long> mToFetch = new ArrayDeque<>();
+
+    private boolean mRunning;
+    private int mReceived;
+
+    public HistorySync(MessageStore store, Transport transport, Listener listener) {
+        mStore = store;
+        mTransport = transport;
+        mListener = listener;
+    }
+
+    /**
+     * Start pulling from the peer, beginning at the root bucket.
+     */
+    public synchronized void start() throws IOException {
+        mRunning = true;
+        mReceived = 0;
+
+        ArrayList<long[]> root = new ArrayList<>();
+        root.add(new long[] {0, 0});
+        sendBuckets(ChatProtocol.TYPE_SUMMARY_REQUEST, root);
+        mPendingSummaries++;
+    }
+
+    /**
+     * @return true if the frame type belongs to the sync protocol
+     */
+    public static boolean isSyncFrame(int type) {
+        return type >= ChatProtocol.TYPE_SUMMARY_REQUEST && type <= ChatProtocol.TYPE_FETCH_RESPONSE;
+    }
+
+    /**
+     * Handle a sync frame from the peer.
+     */
+    public synchronized void onFrame(int type, byte[] body, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+
+        switch (type) {
+            // Requests from the peer, answered from our store
+            case ChatProtocol.TYPE_SUMMARY_REQUEST:
+                answerSummaries(in);
+                break;
+            case ChatProtocol.TYPE_IDS_REQUEST:
+                answerIds(in);
+                break;
+            case ChatProtocol.TYPE_FETCH_REQUEST:
+                answerFetch(in);
+                break;
+
+            // Answers to our own requests. One we didn't ask for would
+            // push a counter negative and the sync would never complete
+            case ChatProtocol.TYPE_SUMMARY_RESPONSE:
+                if (mPendingSummaries == 0) {
+                    return;
+                }
+                mPendingSummaries--;
+                compareSummaries(in);
+                break;
+            case ChatProtocol.TYPE_IDS_RESPONSE:
+                if (mPendingIds == 0) {
+                    return;
+                }
+                mPendingIds--;
+                queueMissing(in);
+                break;
+            case ChatProtocol.TYPE_FETCH_RESPONSE:
+                if (mPendingFetches.isEmpty()) {
+                    return;
+                }
+                storeFetched(mPendingFetches.poll(), in);
+                break;
+            default:
+                throw new IOException("not a sync frame: " + type);
+        }
+
+        pumpFetches();
+        checkComplete();
+    }
+
+    private void answerSummaries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ChatProtocol.FrameBuilder frame = new ChatProtocol.FrameBuilder(ChatProtocol.TYPE_SUMMARY_RESPONSE);
+        frame.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            int level = in.readUnsignedByte();
+            long index = in.readLong();
+            MessageStore.Summary summary = mStore.getSummary(level, index);
+            frame.writeByte(level);
+            frame.writeLong(index);
+            frame.writeInt(summary.count);
+            frame.writeLong(summary.digest);
+        }
+        mTransport.send(frame.toFrame());
+    }
+
+    private void answerIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int level = in.readUnsignedByte();
+            long index = in.readLong();
+            ids.addAll(mStore.getIds(level, index));
+        }
+
+        ChatProtocol.FrameBuilder frame = new ChatProtocol.FrameBuilder(ChatProtocol.TYPE_IDS_RESPONSE);
+        frame.writeInt(ids.size());
+        for (long id : ids) {
+            frame.writeLong(id);
+        }
+        mTransport.send(frame.toFrame());
+    }
+
+    private void answerFetch(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<byte[]> messages = new ArrayList<>();
+        int size = 0;
+        int handled = 0;
+        for (; handled < count; handled++) {
+            // Could have been dropped from the store since the ids were sent
+            ChatMessage message = mStore.get(in.readLong());
+            if (message == null) {
+                continue;
+            }
+            byte[] encoded = encode(message);
+            if (!messages.isEmpty() && size + encoded.length > FETCH_RESPONSE_SIZE) {
+                // Full, the peer asks again for this id and the rest
+                break;
+            }
+            messages.add(encoded);
+            size += encoded.length;
+        }
+
+        ChatProtocol.FrameBuilder frame = new ChatProtocol.FrameBuilder(ChatProtocol.TYPE_FETCH_RESPONSE);
+        frame.writeInt(handled);
+        frame.writeInt(messages.size());
+        for (byte[] encoded : messages) {
+            frame.write(encoded);
+        }
+        mTransport.send(frame.toFrame());
+    }
+
+    private static byte[] encode(ChatMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChatProtocol.writeMessage(new DataOutputStream(bytes), message);
+        return bytes.toByteArray();
+    }
+
+    private void compareSummaries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<long[]> descend = new ArrayList<>();
+        ArrayList<long[]> list = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            int level = in.readUnsignedByte();
+            long index = in.readLong();
+            MessageStore.Summary remote = new MessageStore.Summary(in.readInt(), in.readLong());
+
+            // Nothing to pull if the buckets match, the peer has nothing
+            // there, or anything pulled would fall out of retention
+            if (remote.count == 0 || remote.matches(mStore.getSummary(level, index))
+                    || mStore.isBelowRetention(level, index)) {
+                continue;
+            }
+
+            if (remote.count <= LEAF_SIZE || level == MessageStore.MAX_LEVEL) {
+                list.add(new long[] {level, index});
+            } else {
+                for (int child = 0; child < MessageStore.FANOUT; child++) {
+                    descend.add(new long[] {level + 1, (index << MessageStore.FANOUT_BITS) | child});
+                }
+            }
+        }
+
+        if (!descend.isEmpty()) {
+            sendBuckets(ChatProtocol.TYPE_SUMMARY_REQUEST, descend);
+            mPendingSummaries++;
+        }
+        if (!list.isEmpty()) {
+            sendBuckets(ChatProtocol.TYPE_IDS_REQUEST, list);
+            mPendingIds++;
+        }
+    }
+
+    private void queueMissing(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            if (!mStore.contains(id)) {
+                mToFetch.add(id);
+            }
+        }
+    }
+
+    private void storeFetched(long[] requested, DataInputStream in) throws IOException {
+        int handled = in.readInt();
+        if (handled < 1 || handled > requested.length) {
+            throw new IOException("bad fetch response, covers " + handled + " of " + requested.length);
+        }
+        for (int i = handled; i < requested.length; i++) {
+            mToFetch.add(requested[i]);
+        }
+
+        int count = in.readInt();
+        ArrayList<ChatMessage> added = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ChatMessage message = ChatProtocol.readMessage(in);
+            if (mStore.add(message)) {
+                added.add(message);
+            }
+        }
+        mReceived += added.size();
+        if (!added.isEmpty()) {
+            mListener.onMessagesSynced(added);
+        }
+    }
+
+    /**
+     * Keep up to FETCH_WINDOW fetch requests in flight.
+     */
+    private void pumpFetches() throws IOException {
+        while (mPendingFetches.size() < FETCH_WINDOW && !mToFetch.isEmpty()) {
+            long[] ids = new long[Math.min(FETCH_BATCH, mToFetch.size())];
+            ChatProtocol.FrameBuilder frame = new ChatProtocol.FrameBuilder(ChatProtocol.TYPE_FETCH_REQUEST);
+            frame.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mToFetch.poll();
+                frame.writeLong(ids[i]);
+            }
+            mTransport.send(frame.toFrame());
+            mPendingFetches.add(ids);
+        }
+    }
+
+    private void checkComplete() {
+        if (mRunning && mPendingSummaries == 0 && mPendingIds == 0 && mPendingFetches.isEmpty()
+                && mToFetch.isEmpty()) {
+            mRunning = false;
+            mListener.onSyncComplete(mReceived);
+        }
+    }
+
+    private void sendBuckets(int type, List<long[]> buckets) throws IOException {
+        ChatProtocol.FrameBuilder frame = new ChatProtocol.FrameBuilder(type);
+        frame.writeInt(buckets.size());
+        for (long[] bucket : buckets) {
+            frame.writeByte((int) bucket[0]);
+            frame.writeLong(bucket[1]);
+        }
+        mTransport.send(frame.toFrame());
+    }
+}
@@ -0,0 +1,562 @@
+package com.example.btchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single-producer/multi-consumer ring buffer between a link's read loop and
+ * whatever handles the bytes it reads (conversation, persistence, metrics,
+ * relaying), modelled on the LMAX Disruptor.
+ *
+ * All events are allocated up front and reused. The reader claims the next
+ * event with next(), reads straight into its buffer and publish()es it.
+ * Each consumer runs on its own thread and tracks its own sequence, waiting
+ * on a SequenceBarrier with the WaitStrategy it was added with. A consumer
+ * can depend on other consumers so it only sees events they have finished.
+ *
+ * Consumers added as gating hold the reader back: next() does not reuse an
+ * event until every gating consumer is done with it, so they never lose
+ * data. Use that for the consumer the link can't work without. Other
+ * consumers never slow the reader; one that falls a whole ring behind skips
+ * ahead to the oldest event still held and is told how many it missed
+ * through EventHandler.onOverrun(). On halt() gating consumers drain what
+ * was published, the others stop straight away.
+ */
+public class InboundRingBuffer {
+
+    // Yields before the reader blocks on a gating consumer
+    private static final int GATING_SPIN_TRIES = 100;
+
+    /**
+     * One slot of the ring. Only valid inside EventHandler.onEvent().
+     */
+    public static class Event {
+        public final byte[] data;
+        public int length;
+        // System.nanoTime() when the read returned
+        public long timestamp;
+
+        // Sequence this slot currently holds, -1 while being written
+        private volatile long mSequence = -1;
+
+        private Event(int bufferSize) {
+            data = new byte[bufferSize];
+        }
+    }
+
+    /**
+     * Called on the consumer's own thread.
+     */
+    public interface EventHandler {
+        /**
+         * @param endOfBatch true for the last event currently available,
+         *                   a good point to flush batched work
+         */
+        void onEvent(Event event, long sequence, boolean endOfBatch);
+
+        /**
+         * The reader overwrote events before this consumer got to them.
+         * Also called after onEvent() if the event was overwritten while
+         * it was being handled, in which case what it read is corrupt.
+         */
+        void onOverrun(long missed);
+    }
+
+    /**
+     * How a consumer waits for new events. Pick by latency vs CPU cost:
+     * busy spin is fastest and burns a core, blocking is slowest to wake
+     * and costs nothing while idle.
+     */
+    public interface WaitStrategy {
+        /**
+         * Wait until sequence is available or the barrier is alerted.
+         *
+         * @return the highest available sequence, may be less than
+         *         sequence if alerted
+         */
+        long waitFor(long sequence, SequenceBarrier barrier) throws InterruptedException;
+
+        /**
+         * Called by the reader after every publish and on halt.
+         */
+        void signalAllWhenBlocking();
+    }
+
+    /**
+     * Spins on the cursor. Lowest latency, uses a full core.
+     */
+    public static class BusySpinWaitStrategy implements WaitStrategy {
+        @Override
+        public long waitFor(long sequence, SequenceBarrier barrier) throws InterruptedException {
+            long available;
+            while ((available = barrier.getAvailable()) < sequence && !barrier.isAlerted()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+
+    /**
+     * Spins briefly, then yields the CPU between checks.
+     */
+    public static class YieldingWaitStrategy implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public long waitFor(long sequence, SequenceBarrier barrier) throws InterruptedException {
+            long available;
+            int counter = SPIN_TRIES;
+            while ((available = barrier.getAvailable()) < sequence && !barrier.isAlerted()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (counter > 0) {
+                    counter--;
+                } else {
+                    Thread.yield();
+                }
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+
+    /**
+     * Spins, then yields, then parks for short periods. Low CPU use while
+     * idle without needing the reader to signal.
+     */
+    public static class SleepingWaitStrategy implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+        private static final int YIELD_TRIES = 100;
+        private static final long PARK_NANOS = 100000;
+
+        @Override
+        public long waitFor(long sequence, SequenceBarrier barrier) throws InterruptedException {
+            long available;
+            int counter = SPIN_TRIES + YIELD_TRIES;
+            while ((available = barrier.getAvailable()) < sequence && !barrier.isAlerted()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (counter > YIELD_TRIES) {
+                    counter--;
+                } else if (counter > 0) {
+                    counter--;
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+        }
+    }
+
+    /**
+     * Blocks on a condition until the reader signals. Uses no CPU while
+     * idle, the right default on a phone. The reader only takes the lock
+     * when a consumer is actually waiting.
+     */
+    public static class BlockingWaitStrategy implements WaitStrategy {
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mProcessorNotifyCondition = mLock.newCondition();
+        private final AtomicInteger mWaiters = new AtomicInteger();
+
+        @Override
+        public long waitFor(long sequence, SequenceBarrier barrier) throws InterruptedException {
+            if (barrier.getCursor() < sequence) {
+                mWaiters.incrementAndGet();
+                mLock.lock();
+                try {
+                    while (barrier.getCursor() < sequence && !barrier.isAlerted()) {
+                        mProcessorNotifyCondition.await();
+                    }
+                } finally {
+                    mLock.unlock();
+                    mWaiters.decrementAndGet();
+                }
+            }
+
+            // Dependencies are other consumers that never signal, so yield
+            long available;
+            while ((available = barrier.getAvailable()) < sequence && !barrier.isAlerted()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Thread.yield();
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAllWhenBlocking() {
+            if (mWaiters.get() > 0) {
+                mLock.lock();
+                try {
+                    mProcessorNotifyCondition.signalAll();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells a consumer how far it may read: up to the reader's cursor, or
+     * up to the slowest consumer it depends on.
+     */
+    public class SequenceBarrier {
+        private final Consumer[] mDependencies;
+
+        private SequenceBarrier(Consumer[] dependencies) {
+            mDependencies = dependencies;
+        }
+
+        public long getCursor() {
+            return mCursor.get();
+        }
+
+        public long getAvailable() {
+            if (mDependencies.length == 0) {
+                return mCursor.get();
+            }
+            long minimum = Long.MAX_VALUE;
+            for (Consumer dependency : mDependencies) {
+                minimum = Math.min(minimum, dependency.getSequence());
+            }
+            return minimum;
+        }
+
+        public boolean isAlerted() {
+            return mAlerted;
+        }
+
+        private boolean dependenciesFinished() {
+            for (Consumer dependency : mDependencies) {
+                if (!dependency.mFinished) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A consumer thread. Processes every available event in order, in
+     * batches, and publishes its own sequence for dependent consumers.
+     */
+    public class Consumer extends Thread {
+        private final EventHandler mHandler;
+        private final WaitStrategy mWaitStrategy;
+        private final SequenceBarrier mBarrier;
+        private final AtomicLong mSequence = new AtomicLong(-1);
+        private final AtomicLong mOverruns = new AtomicLong();
+        private final boolean mGating;
+        private volatile boolean mFinished;
+        // Written only to order the handler's reads before the post-check
+        private volatile long mFence;
+
+        private Consumer(String name, EventHandler handler, WaitStrategy waitStrategy,
+                         boolean gating, Consumer[] dependencies) {
+            super(name);
+            mHandler = handler;
+            mWaitStrategy = waitStrategy;
+            mGating = gating;
+            mBarrier = new SequenceBarrier(dependencies);
+        }
+
+        /**
+         * @return the last sequence this consumer finished with
+         */
+        public long getSequence() {
+            return mSequence.get();
+        }
+
+        /**
+         * @return how many events this consumer has missed in total
+         */
+        public long getOverruns() {
+            return mOverruns.get();
+        }
+
+        @Override
+        public void run() {
+            try {
+                processEvents();
+            } finally {
+                // Also on a handler exception, so the reader stops waiting
+                // for a gating consumer that is gone. The exception itself
+                // goes on to the thread's uncaught exception handler.
+                mFinished = true;
+                signalProducer();
+            }
+        }
+
+        private void processEvents() {
+            long next = mSequence.get() + 1;
+
+            while (true) {
+                long available;
+                try {
+                    available = mWaitStrategy.waitFor(next, mBarrier);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                if (available < next) {
+                    // Alerted and everything before us is drained
+                    if (mBarrier.isAlerted() && mBarrier.dependenciesFinished()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                while (next <= available) {
+                    if (!mGating && mBarrier.isAlerted()) {
+                        // Only gating consumers need what is left
+                        return;
+                    }
+
+                    Event event = mEvents[(int) next & mMask];
+                    if (event.mSequence != next) {
+                        // Lapped by the reader, jump to the oldest event still intact.
+                        // The slot after the cursor may be mid-write, so skip it too.
+                        long oldest = mCursor.get() - mEvents.length + 2;
+                        long missed = Math.max(1, oldest - next);
+                        reportOverrun(missed);
+                        next += missed;
+                        mSequence.lazySet(next - 1);
+                        break;
+                    }
+
+                    mHandler.onEvent(event, next, next == available);
+
+                    // Java 8 and older Android have no VarHandle.loadLoadFence().
+                    // Plain reads of event.data can't move below this volatile
+                    // write, and the volatile read after it can't move above it,
+                    // so the handler's reads happen before the post-check.
+                    mFence = next;
+                    if (event.mSequence != next) {
+                        reportOverrun(1);
+                    }
+                    if (mGating) {
+                        // Volatile write then volatile read, pairs with
+                        // waitForGatingConsumers() so no wake up is lost
+                        mSequence.set(next);
+                        if (mProducerWaiting) {
+                            signalProducer();
+                        }
+                    } else {
+                        mSequence.lazySet(next);
+                    }
+                    next++;
+                }
+            }
+        }
+
+        private void reportOverrun(long missed) {
+            mOverruns.addAndGet(missed);
+            mHandler.onOverrun(missed);
+        }
+    }
+
+    private final Event[] mEvents;
+    private final int mMask;
+    // Highest published sequence
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    private final List<Consumer> mConsumers = new ArrayList<>();
+    private WaitStrategy[] mWaitStrategies = new WaitStrategy[0];
+    private Consumer[] mGatingConsumers = new Consumer[0];
+    // Producer only, lowest gating sequence seen last time it was checked
+    private long mCachedGatingSequence = -1;
+    // Read only to order the invalidation before the writes to event data
+    private volatile long mFence;
+    private volatile boolean mAlerted;
+    // The reader blocks here while a gating consumer holds it back
+    private final ReentrantLock mProducerLock = new ReentrantLock();
+    private final Condition mGatingAdvanced = mProducerLock.newCondition();
+    private volatile boolean mProducerWaiting;
+
+    /**
+     * @param size       number of events, must be a power of two
+     * @param bufferSize bytes preallocated in each event
+     */
+    public InboundRingBuffer(int size, int bufferSize) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two: " + size);
+        }
+        mEvents = new Event[size];
+        mMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            mEvents[i] = new Event(bufferSize);
+        }
+    }
+
+    /**
+     * Add a consumer. Must be called before start().
+     *
+     * @param gating    true if the reader must wait for this consumer rather
+     *                  than let it overrun
+     * @param dependsOn consumers that must finish with an event first
+     */
+    public synchronized Consumer addConsumer(String name, EventHandler handler, WaitStrategy waitStrategy,
+                                             boolean gating, Consumer... dependsOn) {
+        Consumer consumer = new Consumer(name, handler, waitStrategy, gating, dependsOn);
+        mConsumers.add(consumer);
+
+        ArrayList<WaitStrategy> strategies = new ArrayList<>();
+        ArrayList<Consumer> gatingConsumers = new ArrayList<>();
+        for (Consumer c : mConsumers) {
+            if (!strategies.contains(c.mWaitStrategy)) {
+                strategies.add(c.mWaitStrategy);
+            }
+            if (c.mGating) {
+                gatingConsumers.add(c);
+            }
+        }
+        mWaitStrategies = strategies.toArray(new WaitStrategy[0]);
+        mGatingConsumers = gatingConsumers.toArray(new Consumer[0]);
+        return consumer;
+    }
+
+    /**
+     * Start all consumer threads.
+     */
+    public synchronized void start() {
+        for (Consumer consumer : mConsumers) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Producer only. Claim the next event to fill, waiting first for any
+     * gating consumer still using it. It is not visible to consumers until
+     * publish() is called.
+     */
+    public Event next() {
+        long sequence = mCursor.get() + 1;
+        waitForGatingConsumers(sequence - mEvents.length);
+
+        Event event = mEvents[(int) sequence & mMask];
+        // Invalidate first so a lapped consumer can tell it is being reused
+        event.mSequence = -1;
+        // Java 8 and older Android have no VarHandle.storeStoreFence(). Plain
+        // writes after this volatile read can't move above it, and it can't
+        // move above the volatile write, so the invalidation is visible
+        // before any new data.
+        long ignored = mFence;
+        return event;
+    }
+
+    /**
+     * Wait until every gating consumer has finished with sequence. Spins
+     * briefly, then blocks until a gating consumer signals that it moved
+     * on, so a reader held back by a slow consumer uses no CPU. Gating
+     * consumers that have exited are not waited for.
+     */
+    private void waitForGatingConsumers(long sequence) {
+        if (sequence <= mCachedGatingSequence) {
+            return;
+        }
+
+        for (int i = 0; i < GATING_SPIN_TRIES; i++) {
+            if (gatingSequence() >= sequence) {
+                return;
+            }
+            Thread.yield();
+        }
+
+        mProducerLock.lock();
+        try {
+            mProducerWaiting = true;
+            while (gatingSequence() < sequence) {
+                mGatingAdvanced.awaitUninterruptibly();
+            }
+        } finally {
+            mProducerWaiting = false;
+            mProducerLock.unlock();
+        }
+    }
+
+    /**
+     * @return the lowest sequence of the running gating consumers
+     */
+    private long gatingSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (Consumer consumer : mGatingConsumers) {
+            if (!consumer.mFinished) {
+                minimum = Math.min(minimum, consumer.getSequence());
+            }
+        }
+        mCachedGatingSequence = minimum;
+        return minimum;
+    }
+
+    private void signalProducer() {
+        mProducerLock.lock();
+        try {
+            mGatingAdvanced.signalAll();
+        } finally {
+            mProducerLock.unlock();
+        }
+    }
+
+    /**
+     * Producer only. Make the event returned by next() visible.
+     */
+    public void publish(Event event) {
+        long sequence = mCursor.get() + 1;
+        event.mSequence = sequence;
+        mCursor.set(sequence);
+
+        for (WaitStrategy waitStrategy : mWaitStrategies) {
+            waitStrategy.signalAllWhenBlocking();
+        }
+    }
+
+    /**
+     * Stop accepting events. Gating consumers finish what has been
+     * published, the others stop after the event they are handling. Then
+     * they all exit.
+     */
+    public void halt() {
+        mAlerted = true;
+        for (WaitStrategy waitStrategy : mWaitStrategies) {
+            waitStrategy.signalAllWhenBlocking();
+        }
+    }
+
+    /**
+     * Wait for all consumer threads to exit.
+     */
+    public void join(long millis) throws InterruptedException {
+        for (Consumer consumer : mConsumers) {
+            consumer.join(millis);
+        }
+    }
+
+    public int getSize() {
+        return mEvents.length;
+    }
+
+    public long getCursor() {
+        return mCursor.get();
+    }
+}
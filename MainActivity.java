@@ -22,14 +22,16 @@ import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 
-public class MainActivity extends AppCompatActivity implements AdapterView.OnItemClickListener {
+public class MainActivity extends AppCompatActivity implements AdapterView.OnItemClickListener,
+        DiscoveryScheduler.Listener, BluetoothChatService.OnMessageListener {
     private static final String TAG = "MainActivity";
 
     BluetoothAdapter mBluetoothAdapter;
@@ -37,6 +39,8 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
     BluetoothChatService mBluetoothChat;
 
+    DiscoveryScheduler mDiscoveryScheduler;
+
     Button btnStartConnection;
     Button btnSend;
 
@@ -52,6 +56,13 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
     ListView lvNewDevices;
 
+    RecyclerView rvConversation;
+
+    ConversationUpdater mConversationUpdater;
+
+    // Outlives each BluetoothChatService so history sync has something to compare
+    MessageStore mMessageStore = new MessageStore();
+
 
     private static final String[] MY_BLUETOOTH_PERMISSIONS = {
             Manifest.permission.ACCESS_COARSE_LOCATION,
@@ -153,26 +164,6 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     };
 
 
-    /**
-     * Broadcast Receiver for listing devices that are not yet paired
-     * -Executed by btnDiscover() method.
-     */
-    private BroadcastReceiver mBroadcastReceiver3 = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            Log.d(TAG, "onReceive: ACTION FOUND.");
-
-            if (action.equals(BluetoothDevice.ACTION_FOUND)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                mBTDevices.add(device);
-                Log.d(TAG, "onReceive: " + device.getName() + ": " + device.getAddress());
-                mDeviceListAdapter = new DeviceListAdapter(context, R.layout.device_adapter_view, mBTDevices);
-                lvNewDevices.setAdapter(mDeviceListAdapter);
-            }
-        }
-    };
-
     /**
      * Broadcast Receiver that detects bond state changes (Pairing status changes)
      */
@@ -217,9 +208,9 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     protected void onDestroy() {
         Log.d(TAG, "onDestroy: called.");
         super.onDestroy();
+        mDiscoveryScheduler.unregister();
         unregisterReceiver(mBroadcastReceiver1);
         unregisterReceiver(mBroadcastReceiver2);
-        unregisterReceiver(mBroadcastReceiver3);
         unregisterReceiver(mBroadcastReceiver4);
         //mBluetoothAdapter.cancelDiscovery();
     }
@@ -236,6 +227,10 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
         btnStartConnection = (Button) findViewById(R.id.btnStartConnection);
         btnSend = (Button) findViewById(R.id.btnSend);
         etSend = (EditText) findViewById(R.id.editText);
+        rvConversation = (RecyclerView) findViewById(R.id.rvConversation);
+
+        // Incoming messages are applied to the list at most once per frame
+        mConversationUpdater = new ConversationUpdater(rvConversation, new ConversationHistory(mMessageStore));
 
         //Broadcasts when bond state changes (ie:pairing)
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
@@ -243,6 +238,10 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        // Discovery runs only through the scheduler so scans don't starve open links
+        mDiscoveryScheduler = new DiscoveryScheduler(MainActivity.this, MainActivity.this);
+        mDiscoveryScheduler.register();
+
         lvNewDevices.setOnItemClickListener(MainActivity.this);
 
         // verifyPermissions();
@@ -266,8 +265,8 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
         btnSend.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                byte[] bytes = etSend.getText().toString().getBytes(Charset.defaultCharset());
-                mBluetoothChat.write(bytes);
+                mBluetoothChat.sendMessage(etSend.getText().toString());
+                mConversationUpdater.refresh();
             }
         });
     }
@@ -330,25 +329,28 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     public void btnDiscover(View view) {
         Log.d(TAG, "btnDiscover: Looking for unpaired devices.");
 
-        if(mBluetoothAdapter.isDiscovering()){
-            mBluetoothAdapter.cancelDiscovery();
-            Log.d(TAG, "btnDiscover: Canceling discovery.");
+        //check BT permissions in manifest
+        checkBTPermissions();
 
-            //check BT permissions in manifest
-            checkBTPermissions();
+        // Overlapping requests are collapsed into the running scan
+        mDiscoveryScheduler.requestScan();
+    }
 
-            mBluetoothAdapter.startDiscovery();
-            IntentFilter discoverDevicesIntent = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-            registerReceiver(mBroadcastReceiver3, discoverDevicesIntent);
+    /**
+     * Called by the DiscoveryScheduler with the ranked devices, best first.
+     */
+    @Override
+    public void onCandidatesChanged(List<DiscoveryScheduler.Candidate> candidates) {
+        mBTDevices.clear();
+        for (DiscoveryScheduler.Candidate candidate : candidates) {
+            mBTDevices.add(candidate.getDevice());
         }
-        if(!mBluetoothAdapter.isDiscovering()){
 
-            //check BT permissions in manifest
-            checkBTPermissions();
-
-            mBluetoothAdapter.startDiscovery();
-            IntentFilter discoverDevicesIntent = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-            registerReceiver(mBroadcastReceiver3, discoverDevicesIntent);
+        if (mDeviceListAdapter == null) {
+            mDeviceListAdapter = new DeviceListAdapter(this, R.layout.device_adapter_view, mBTDevices);
+            lvNewDevices.setAdapter(mDeviceListAdapter);
+        } else {
+            mDeviceListAdapter.notifyDataSetChanged();
         }
     }
 
@@ -381,10 +383,19 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
         }
     }
 
+    /**
+     * Called on the ConnectedThread for every message read.
+     */
+    @Override
+    public void onMessage(ChatMessage message) {
+        // Already in mMessageStore, which the conversation is drawn from
+        mConversationUpdater.refresh();
+    }
+
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-        //first cancel discovery because its very memory intensive.
-        mBluetoothAdapter.cancelDiscovery();
+        //first stop discovery because its very memory intensive.
+        mDiscoveryScheduler.pause();
 
         Log.d(TAG, "onItemClick: You Clicked on a device.");
         String deviceName = mBTDevices.get(i).getName();
@@ -401,6 +412,9 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
             mBTDevice = mBTDevices.get(i);
             mBluetoothChat = new BluetoothChatService(MainActivity.this);
+            mBluetoothChat.setDiscoveryScheduler(mDiscoveryScheduler);
+            mBluetoothChat.setOnMessageListener(MainActivity.this);
+            mBluetoothChat.setMessageStore(mMessageStore);
         }
     }
 }
@@ -0,0 +1,214 @@
+package com.example.btchat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Every message this device knows about, sent or received, ordered by
+ * timestamp and bounded to CAPACITY (oldest dropped first). Thread-safe.
+ *
+ * Alongside the messages it keeps a summary tree for HistorySync. Time is
+ * split into buckets: level 0 is one bucket covering all time, and each
+ * level splits its buckets into FANOUT equal parts, down to MAX_LEVEL. Each
+ * bucket holds the message count and the XOR of the message hashes in it.
+ * XOR is order independent and undoes itself, so adding or dropping a
+ * message updates one bucket per level.
+ */
+public class MessageStore {
+
+    // Most messages ever kept in memory
+    public static final int CAPACITY = 2000;
+
+    // Bits of index added per level, FANOUT = 2^FANOUT_BITS children per bucket
+    public static final int FANOUT_BITS = 4;
+    public static final int FANOUT = 1 << FANOUT_BITS;
+    public static final int MAX_LEVEL = 10;
+    // Timestamps are clamped to [0, 2^42) ms, about the year 2109
+    public static final int TIME_BITS = 42;
+
+    /**
+     * Count and digest of one bucket.
+     */
+    public static class Summary {
+        public final int count;
+        public final long digest;
+
+        public Summary(int count, long digest) {
+            this.count = count;
+            this.digest = digest;
+        }
+
+        public boolean matches(Summary other) {
+            return count == other.count && digest == other.digest;
+        }
+    }
+
+    // Order by timestamp, then id so equal timestamps are still distinct
+    private static final Comparator<ChatMessage> ORDER = new Comparator<ChatMessage>() {
+        @Override
+        public int compare(ChatMessage a, ChatMessage b) {
+            int byTime = Long.compare(clampTime(a.getTimestamp()), clampTime(b.getTimestamp()));
+            return byTime != 0 ? byTime : Long.compare(a.getId(), b.getId());
+        }
+    };
+
+    private final int mCapacity;
+    private final TreeSet<ChatMessage> mByTime = new TreeSet<>(ORDER);
+    private final HashMap<Long, ChatMessage> mById = new HashMap<>();
+    // Bucket key -> {count, digest}; empty buckets are removed
+    private final HashMap<Long, long[]> mBuckets = new HashMap<>();
+
+    public MessageStore() {
+        this(CAPACITY);
+    }
+
+    public MessageStore(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return false if the message was already known, or older than
+     *         everything kept while the store is full
+     */
+    public synchronized boolean add(ChatMessage message) {
+        if (mById.containsKey(message.getId())) {
+            return false;
+        }
+        if (mByTime.size() >= mCapacity) {
+            ChatMessage oldest = mByTime.first();
+            if (ORDER.compare(message, oldest) < 0) {
+                return false;
+            }
+            remove(oldest);
+        }
+
+        mByTime.add(message);
+        mById.put(message.getId(), message);
+        updateBuckets(message, 1);
+        return true;
+    }
+
+    public synchronized ChatMessage get(long id) {
+        return mById.get(id);
+    }
+
+    public synchronized boolean contains(long id) {
+        return mById.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return mByTime.size();
+    }
+
+    /**
+     * @return true if the store is full and the whole bucket is older than
+     *         what it keeps, so anything pulled from it would be dropped
+     */
+    public synchronized boolean isBelowRetention(int level, long index) {
+        return mByTime.size() >= mCapacity
+                && bucketEnd(level, index) <= clampTime(mByTime.first().getTimestamp());
+    }
+
+    public synchronized Summary getSummary(int level, long index) {
+        long[] bucket = mBuckets.get(bucketKey(level, index));
+        return bucket == null ? new Summary(0, 0) : new Summary((int) bucket[0], bucket[1]);
+    }
+
+    /**
+     * @return ids of the messages in a bucket, oldest first
+     */
+    public synchronized List<Long> getIds(int level, long index) {
+        ArrayList<Long> ids = new ArrayList<>();
+        for (ChatMessage message : messagesIn(level, index)) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * @return a copy of every message, oldest first
+     */
+    public synchronized List<ChatMessage> getAll() {
+        return new ArrayList<>(mByTime);
+    }
+
+    /**
+     * @return a copy of the newest count messages, oldest first
+     */
+    public synchronized List<ChatMessage> getNewest(int count) {
+        ArrayList<ChatMessage> newest = new ArrayList<>(Math.min(count, mByTime.size()));
+        Iterator<ChatMessage> it = mByTime.descendingIterator();
+        while (newest.size() < count && it.hasNext()) {
+            newest.add(it.next());
+        }
+        Collections.reverse(newest);
+        return newest;
+    }
+
+    public static long bucketStart(int level, long index) {
+        return index << (TIME_BITS - FANOUT_BITS * level);
+    }
+
+    public static long bucketEnd(int level, long index) {
+        return (index + 1) << (TIME_BITS - FANOUT_BITS * level);
+    }
+
+    public static long bucketIndex(int level, long time) {
+        return clampTime(time) >>> (TIME_BITS - FANOUT_BITS * level);
+    }
+
+    private static long bucketKey(int level, long index) {
+        return ((long) level << 56) | index;
+    }
+
+    private static long clampTime(long time) {
+        return Math.max(0, Math.min(time, (1L << TIME_BITS) - 1));
+    }
+
+    /**
+     * Spread the id bits so XOR digests of similar ids don't cancel out.
+     */
+    private static long hash(long id) {
+        long z = id + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private Iterable<ChatMessage> messagesIn(int level, long index) {
+        ChatMessage from = new ChatMessage(Long.MIN_VALUE, "", "", bucketStart(level, index), false);
+        ChatMessage to = new ChatMessage(Long.MIN_VALUE, "", "", bucketEnd(level, index), false);
+        if (bucketEnd(level, index) > clampTime(Long.MAX_VALUE)) {
+            return mByTime.tailSet(from, true);
+        }
+        return mByTime.subSet(from, true, to, false);
+    }
+
+    private void remove(ChatMessage message) {
+        mByTime.remove(message);
+        mById.remove(message.getId());
+        updateBuckets(message, -1);
+    }
+
+    private void updateBuckets(ChatMessage message, int delta) {
+        long hash = hash(message.getId());
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            long key = bucketKey(level, bucketIndex(level, message.getTimestamp()));
+            long[] bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new long[2];
+                mBuckets.put(key, bucket);
+            }
+            bucket[0] += delta;
+            bucket[1] ^= hash;
+            if (bucket[0] == 0) {
+                mBuckets.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,875 @@
+package com.example.btchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Headless load generator and soak test for the connection code.
+ *
+ * Runs on a plain desktop JVM, no device or Android runtime needed. It
+ * starts N simulated peers, each connected to a "service" side through a
+ * ChatLink over loopback TCP sockets or in-process pipes standing in for
+ * RFCOMM sockets. Both sides run a ChatSession, the receive path of a
+ * ConnectedThread: frames are decoded, chat messages added to a
+ * MessageStore and history sync run on connect. Peers send
+ * ChatProtocol chat frames at a fixed rate with a weighted size mix. The
+ * service side sends every new message straight back so each peer can
+ * check order and integrity and time the round trip.
+ *
+ * Every report interval it prints throughput, round trip latency
+ * percentiles, heap use and live thread count. The run fails (exit code 1)
+ * if any message is lost, corrupted or reordered, if a peer's most recent
+ * messages are missing from the service side's MessageStore, if the heap
+ * keeps growing or if threads are left behind after all links are closed.
+ *
+ * Build and run from the source directory:
+ *
+ *   javac -d out ChatMessage.java ChatProtocol.java MessageStore.java HistorySync.java \
+ *       ChatLink.java ChatSession.java InboundRingBuffer.java SoakTest.java
+ *   java -cp out com.example.btchat.SoakTest --peers 16 --rate 50 --duration 2h
+ *
+ * Options:
+ *   --peers N          simulated peers (default 8)
+ *   --rate N           messages per second per peer (default 20)
+ *   --sizes S:W,...    message text sizes in bytes with weights (default 32:70,256:25,4096:5)
+ *   --duration T       run time, suffix s, m or h (default 60s)
+ *   --report T         report interval (default 10s)
+ *   --transport X      tcp or pipe (default tcp)
+ *   --max-heap-growth N  allowed heap growth in MB after warm up (default 64)
+ *   --wait X           consumer wait strategy: blocking, sleeping, yielding or busy (default blocking)
+ *   --slow-consumer-ms N  add a consumer to every service link that stalls N ms per read,
+ *                      to check it does not slow the read path (default off)
+ */
+public class SoakTest {
+
+    // Smallest text: "<seq> <send time> " fits without padding
+    private static final int MIN_TEXT_SIZE = 48;
+    // Pipe buffer roughly matching an RFCOMM socket buffer
+    private static final int PIPE_BUFFER = 64 * 1024;
+    // How long to wait for outstanding echoes after the senders stop
+    private static final long DRAIN_TIMEOUT_MS = 10000;
+    // Threads allowed to linger after shutdown (JIT, GC helpers etc.)
+    private static final int THREAD_SLACK = 2;
+
+    private int mPeerCount = 8;
+    private int mRate = 20;
+    private int[] mSizes = {32, 256, 4096};
+    private int[] mWeights = {70, 25, 5};
+    private long mDurationMs = 60000;
+    private long mReportMs = 10000;
+    private boolean mUsePipes;
+    private long mMaxHeapGrowth = 64L * 1024 * 1024;
+    private String mWaitStrategy = "blocking";
+    private long mSlowConsumerMs;
+
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mSlowOverruns = new AtomicLong();
+
+    private final List<Peer> mPeers = new ArrayList<>();
+    private final List<ServiceLink> mServiceLinks = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        SoakTest test = new SoakTest();
+        try {
+            test.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("SoakTest: " + e.getMessage());
+            System.exit(2);
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--peers":
+                    mPeerCount = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    mRate = Integer.parseInt(value);
+                    break;
+                case "--sizes":
+                    parseSizes(value);
+                    break;
+                case "--duration":
+                    mDurationMs = parseTime(value);
+                    break;
+                case "--report":
+                    mReportMs = parseTime(value);
+                    break;
+                case "--transport":
+                    if (!value.equals("tcp") && !value.equals("pipe")) {
+                        throw new IllegalArgumentException("unknown transport " + value);
+                    }
+                    mUsePipes = value.equals("pipe");
+                    break;
+                case "--max-heap-growth":
+                    mMaxHeapGrowth = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "--wait":
+                    newWaitStrategy(value);
+                    mWaitStrategy = value;
+                    break;
+                case "--slow-consumer-ms":
+                    mSlowConsumerMs = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+        if (mPeerCount < 1 || mRate < 1 || mDurationMs <= 0 || mReportMs <= 0) {
+            throw new IllegalArgumentException("peers, rate, duration and report must be positive");
+        }
+    }
+
+    private static InboundRingBuffer.WaitStrategy newWaitStrategy(String name) {
+        switch (name) {
+            case "blocking":
+                return new InboundRingBuffer.BlockingWaitStrategy();
+            case "sleeping":
+                return new InboundRingBuffer.SleepingWaitStrategy();
+            case "yielding":
+                return new InboundRingBuffer.YieldingWaitStrategy();
+            case "busy":
+                return new InboundRingBuffer.BusySpinWaitStrategy();
+            default:
+                throw new IllegalArgumentException("unknown wait strategy " + name);
+        }
+    }
+
+    private void parseSizes(String value) {
+        String[] entries = value.split(",");
+        mSizes = new int[entries.length];
+        mWeights = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].split(":");
+            mSizes[i] = Math.max(MIN_TEXT_SIZE, Integer.parseInt(parts[0].trim()));
+            if (mSizes[i] > ChatProtocol.MAX_TEXT_SIZE) {
+                throw new IllegalArgumentException("sizes can't exceed " + ChatProtocol.MAX_TEXT_SIZE);
+            }
+            mWeights[i] = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+        }
+    }
+
+    private static long parseTime(String value) {
+        char unit = value.charAt(value.length() - 1);
+        if (Character.isDigit(unit)) {
+            return Long.parseLong(value) * 1000;
+        }
+        long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        switch (unit) {
+            case 's':
+                return TimeUnit.SECONDS.toMillis(amount);
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(amount);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(amount);
+            default:
+                throw new IllegalArgumentException("bad time " + value);
+        }
+    }
+
+    /**
+     * @return true if the run passed
+     */
+    private boolean run() throws Exception {
+        System.out.println("SoakTest: " + mPeerCount + " peers, " + mRate + " msg/s each, "
+                + (mUsePipes ? "pipe" : "tcp") + " transport, " + mWaitStrategy + " wait, "
+                + mDurationMs / 1000 + "s");
+
+        int baselineThreads = Thread.activeCount();
+
+        connectPeers();
+        for (Peer peer : mPeers) {
+            peer.start();
+        }
+
+        long start = System.currentTimeMillis();
+        long end = start + mDurationMs;
+        long warmHeap = -1;
+        long lastReceived = 0;
+        long lastBytes = 0;
+        long lastReport = start;
+        boolean heapLeak = false;
+
+        while (System.currentTimeMillis() < end && mErrors.get() == 0) {
+            Thread.sleep(Math.min(mReportMs, Math.max(1, end - System.currentTimeMillis())));
+
+            long now = System.currentTimeMillis();
+            long sent = mSent.get();
+            long received = mReceived.get();
+            long bytes = mBytesReceived.get();
+            double seconds = (now - lastReport) / 1000.0;
+            long heap = usedHeapAfterGc();
+
+            // Treat the first interval as warm up for the heap baseline
+            if (warmHeap < 0) {
+                warmHeap = heap;
+            } else if (heap - warmHeap > mMaxHeapGrowth) {
+                heapLeak = true;
+            }
+
+            System.out.println(String.format(
+                    "t=%6ds sent=%d recv=%d in-flight=%d  %.0f msg/s %.1f KB/s  rtt p50=%s p90=%s p99=%s max=%s  heap=%dMB threads=%d",
+                    (now - start) / 1000, sent, received, sent - received,
+                    (received - lastReceived) / seconds,
+                    (bytes - lastBytes) / 1024.0 / seconds,
+                    formatMicros(mLatency.percentile(50)),
+                    formatMicros(mLatency.percentile(90)),
+                    formatMicros(mLatency.percentile(99)),
+                    formatMicros(mLatency.max()),
+                    heap / (1024 * 1024), Thread.activeCount())
+                    + (mSlowConsumerMs > 0 ? " slow-overruns=" + mSlowOverruns.get() : ""));
+            mLatency.reset();
+
+            lastReceived = received;
+            lastBytes = bytes;
+            lastReport = now;
+
+            if (heapLeak) {
+                break;
+            }
+        }
+
+        for (Peer peer : mPeers) {
+            peer.stopSending();
+        }
+
+        // Give the messages sent back that are still in flight a chance to arrive
+        long drainEnd = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (mReceived.get() < mSent.get() && System.currentTimeMillis() < drainEnd
+                && mErrors.get() == 0) {
+            Thread.sleep(50);
+        }
+
+        long lost = mSent.get() - mReceived.get();
+        long missing = 0;
+        for (int i = 0; i < mPeers.size(); i++) {
+            missing += mPeers.get(i).countMissingFrom(mServiceLinks.get(i).mStore);
+        }
+        shutdown();
+
+        boolean passed = true;
+        if (mErrors.get() > 0) {
+            System.out.println("FAIL: " + mErrors.get() + " corrupted, reordered or broken messages/links");
+            passed = false;
+        }
+        if (lost > 0) {
+            System.out.println("FAIL: " + lost + " messages lost");
+            passed = false;
+        }
+        if (missing > 0) {
+            System.out.println("FAIL: " + missing + " recent messages missing from the service MessageStore");
+            passed = false;
+        }
+        if (heapLeak) {
+            System.out.println("FAIL: heap grew more than " + mMaxHeapGrowth / (1024 * 1024) + "MB after warm up");
+            passed = false;
+        }
+
+        int leftThreads = waitForThreads(baselineThreads + THREAD_SLACK);
+        if (leftThreads > baselineThreads + THREAD_SLACK) {
+            System.out.println("FAIL: " + (leftThreads - baselineThreads) + " threads left after shutdown");
+            passed = false;
+        }
+
+        System.out.println((passed ? "PASS" : "FAIL") + ": sent=" + mSent.get() + " received=" + mReceived.get());
+        return passed;
+    }
+
+    private void connectPeers() throws IOException {
+        ServerSocket server = null;
+        if (!mUsePipes) {
+            server = new ServerSocket(0, mPeerCount, InetAddress.getLoopbackAddress());
+        }
+
+        try {
+            for (int i = 0; i < mPeerCount; i++) {
+                InputStream serviceIn;
+                OutputStream serviceOut;
+                InputStream peerIn;
+                OutputStream peerOut;
+                final Socket[] sockets;
+
+                if (server != null) {
+                    Socket peerSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+                    Socket serviceSocket = server.accept();
+                    peerSocket.setTcpNoDelay(true);
+                    serviceSocket.setTcpNoDelay(true);
+                    serviceIn = serviceSocket.getInputStream();
+                    serviceOut = serviceSocket.getOutputStream();
+                    peerIn = peerSocket.getInputStream();
+                    peerOut = peerSocket.getOutputStream();
+                    sockets = new Socket[] {peerSocket, serviceSocket};
+                } else {
+                    Pipe toService = new Pipe(PIPE_BUFFER);
+                    Pipe toPeer = new Pipe(PIPE_BUFFER);
+                    peerOut = toService.getOutputStream();
+                    serviceOut = toPeer.getOutputStream();
+                    serviceIn = toService.getInputStream();
+                    peerIn = toPeer.getInputStream();
+                    sockets = new Socket[0];
+                }
+
+                ServiceLink serviceLink = new ServiceLink(i, serviceIn, serviceOut, sockets);
+                mServiceLinks.add(serviceLink);
+                mPeers.add(new Peer(i, peerIn, peerOut));
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+
+        for (ServiceLink serviceLink : mServiceLinks) {
+            serviceLink.start();
+        }
+    }
+
+    private void shutdown() throws InterruptedException {
+        for (Peer peer : mPeers) {
+            peer.close();
+        }
+        for (ServiceLink serviceLink : mServiceLinks) {
+            serviceLink.close();
+        }
+        for (Peer peer : mPeers) {
+            peer.join(5000);
+        }
+        for (ServiceLink serviceLink : mServiceLinks) {
+            serviceLink.join(5000);
+        }
+    }
+
+    private static int waitForThreads(int limit) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        int count = Thread.activeCount();
+        while (count > limit && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+            count = Thread.activeCount();
+        }
+        return count;
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        return String.format("%.1fms", micros / 1000.0);
+    }
+
+    /**
+     * The service end of one connection. Like ConnectedThread it runs the
+     * ChatLink read loop on its own thread with a ChatSession handling what
+     * is read; every new message is also sent back to the peer.
+     */
+    private class ServiceLink extends Thread implements ChatLink.Listener, ChatSession.Listener {
+        // Sized like the app's, the peer checks its newest messages are here
+        final MessageStore mStore = new MessageStore();
+
+        private final int mId;
+        private final ChatLink mLink;
+        private final ChatSession mSession;
+        private final Socket[] mSockets;
+
+        ServiceLink(int id, InputStream in, OutputStream out, Socket[] sockets) {
+            super("SoakTest-service-" + id);
+            mId = id;
+            mLink = new ChatLink(in, out, this);
+            mSockets = sockets;
+            mSession = new ChatSession("SoakTest-service-" + id + "-session", mLink, mStore,
+                    newWaitStrategy(mWaitStrategy), this);
+
+            if (mSlowConsumerMs > 0) {
+                mLink.addConsumer("SoakTest-service-" + id + "-slow", new InboundRingBuffer.EventHandler() {
+                    @Override
+                    public void onEvent(InboundRingBuffer.Event event, long sequence, boolean endOfBatch) {
+                        try {
+                            Thread.sleep(mSlowConsumerMs);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    @Override
+                    public void onOverrun(long missed) {
+                        // Expected, it is meant to fall behind
+                        mSlowOverruns.addAndGet(missed);
+                    }
+                }, newWaitStrategy(mWaitStrategy), false);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                mSession.startSync();
+            } catch (IOException e) {
+                System.out.println("Service " + mId + ": could not start sync " + e.getMessage());
+                mErrors.incrementAndGet();
+            }
+            mLink.runReadLoop();
+            try {
+                mLink.joinConsumers(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onActivity() {
+        }
+
+        @Override
+        public void onMessage(ChatMessage message) {
+            try {
+                mSession.send(message);
+            } catch (IOException e) {
+                // The peer went away, its own link reports the failure
+            }
+        }
+
+        @Override
+        public void onSyncComplete(int received) {
+        }
+
+        @Override
+        public void onFailed(String reason) {
+            System.out.println("Service " + mId + ": " + reason);
+            mErrors.incrementAndGet();
+            close();
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            // Closing is driven by the harness
+        }
+
+        void close() {
+            mLink.close();
+            for (Socket socket : mSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * A simulated remote device. One thread sends chat messages at the
+     * configured rate, another runs the link, and its ChatSession checks
+     * every message sent back.
+     */
+    private class Peer implements ChatLink.Listener, ChatSession.Listener {
+        private final int mId;
+        private final String mName;
+        private final ChatLink mLink;
+        private final ChatSession mSession;
+        private final Thread mSender;
+        private final Thread mReader;
+        private volatile boolean mSending = true;
+        private volatile boolean mClosed;
+
+        // Ids of the newest messages sent, at most one store's worth
+        private final ArrayDeque<Long> mRecentIds = new ArrayDeque<>();
+        // Only used on the session's consumer thread
+        private long mNextExpected;
+
+        Peer(int id, InputStream in, OutputStream out) {
+            mId = id;
+            mName = "peer-" + id;
+            mLink = new ChatLink(in, out, this);
+            // Own store: messages come back once, sent back or synced
+            mSession = new ChatSession("SoakTest-peer-" + id + "-session", mLink, new MessageStore(),
+                    newWaitStrategy(mWaitStrategy), this);
+
+            mSender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            }, "SoakTest-peer-" + id + "-send");
+            mReader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mLink.runReadLoop();
+                    try {
+                        mLink.joinConsumers(5000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "SoakTest-peer-" + id + "-read");
+        }
+
+        void start() throws IOException {
+            mSession.startSync();
+            mReader.start();
+            mSender.start();
+        }
+
+        void stopSending() {
+            mSending = false;
+        }
+
+        void close() {
+            mSending = false;
+            mClosed = true;
+            mSender.interrupt();
+            mLink.close();
+        }
+
+        void join(long millis) throws InterruptedException {
+            mSender.join(millis);
+            mReader.join(millis);
+        }
+
+        /**
+         * @return how many of the newest messages sent are not in store
+         */
+        int countMissingFrom(MessageStore store) {
+            int missing = 0;
+            synchronized (mRecentIds) {
+                for (long id : mRecentIds) {
+                    if (!store.contains(id)) {
+                        missing++;
+                    }
+                }
+            }
+            return missing;
+        }
+
+        private void sendLoop() {
+            Random random = new Random(mId);
+            int totalWeight = 0;
+            for (int weight : mWeights) {
+                totalWeight += weight;
+            }
+
+            long interval = TimeUnit.SECONDS.toNanos(1) / mRate;
+            long next = System.nanoTime();
+            long seq = 0;
+
+            while (mSending) {
+                int pick = random.nextInt(totalWeight);
+                int index = 0;
+                while (pick >= mWeights[index]) {
+                    pick -= mWeights[index];
+                    index++;
+                }
+
+                ChatMessage message = new ChatMessage(mName, newText(seq, System.nanoTime(), mSizes[index]),
+                        System.currentTimeMillis(), true);
+                synchronized (mRecentIds) {
+                    if (mRecentIds.size() == MessageStore.CAPACITY) {
+                        mRecentIds.poll();
+                    }
+                    mRecentIds.add(message.getId());
+                }
+
+                // Count before writing so a fast reply never sees received > sent
+                mSent.incrementAndGet();
+                try {
+                    mSession.send(message);
+                } catch (IOException e) {
+                    mSent.decrementAndGet();
+                    if (!mClosed) {
+                        System.out.println("Peer " + mId + ": write failed " + e.getMessage());
+                        mErrors.incrementAndGet();
+                    }
+                    return;
+                }
+                seq++;
+
+                // Fixed schedule so a slow write is caught up, not skipped
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onActivity() {
+        }
+
+        @Override
+        public void onMessage(ChatMessage message) {
+            if (mClosed) {
+                return;
+            }
+            long now = System.nanoTime();
+            String text = message.getText();
+            String[] header = text.split(" ", 3);
+
+            if (!mName.equals(message.getSender())) {
+                fail("got message from " + message.getSender());
+                return;
+            }
+            long seq = Long.parseLong(header[0]);
+            long sentAt = Long.parseLong(header[1]);
+            if (seq != mNextExpected) {
+                fail("expected seq " + mNextExpected + " got " + seq);
+                return;
+            }
+            if (!text.equals(newText(seq, sentAt, text.length()))) {
+                fail("corrupt text in seq " + seq);
+                return;
+            }
+
+            mNextExpected++;
+            mReceived.incrementAndGet();
+            mBytesReceived.addAndGet(text.length());
+            mLatency.record(TimeUnit.NANOSECONDS.toMicros(now - sentAt));
+        }
+
+        @Override
+        public void onSyncComplete(int received) {
+        }
+
+        @Override
+        public void onFailed(String reason) {
+            fail(reason);
+        }
+
+        private void fail(String reason) {
+            System.out.println("Peer " + mId + ": " + reason);
+            mErrors.incrementAndGet();
+            // Resynchronising is not possible once the stream is off
+            close();
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (!mClosed) {
+                System.out.println("Peer " + mId + ": link closed unexpectedly "
+                        + (cause != null ? cause.getMessage() : "(end of stream)"));
+                mErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * "<seq> <send time> " padded to size with a pattern that depends on
+     * seq, so any corruption changes it.
+     */
+    private static String newText(long seq, long sentAt, int size) {
+        StringBuilder text = new StringBuilder(size);
+        text.append(seq).append(' ').append(sentAt).append(' ');
+        for (int i = text.length(); i < size; i++) {
+            text.append((char) ('a' + (i + seq) % 26));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Bounded in-process byte pipe. Writers block while it is full and
+     * readers while it is empty, like a socket. java.io.PipedInputStream is
+     * not used because it polls once a second and breaks when the thread
+     * that last wrote to it exits.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (mCount == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                awaitChange();
+            }
+            int n = Math.min(len, mCount);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = mBuffer[(mHead + i) % mBuffer.length];
+            }
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mCount == mBuffer.length && !mClosed) {
+                    awaitChange();
+                }
+                if (mClosed) {
+                    throw new IOException("pipe closed");
+                }
+                int n = Math.min(len, mBuffer.length - mCount);
+                int tail = (mHead + mCount) % mBuffer.length;
+                for (int i = 0; i < n; i++) {
+                    mBuffer[(tail + i) % mBuffer.length] = b[off + i];
+                }
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void awaitChange() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return Pipe.this.read(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    Pipe.this.close();
+                }
+            };
+        }
+
+        OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Pipe.this.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    Pipe.this.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Fixed-size latency histogram in microseconds. Buckets are linear
+     * inside each power of two so percentiles stay within 12.5% without
+     * allocating while recording.
+     */
+    private static class LatencyHistogram {
+        // Exact below 16us, then 8 buckets per power of two
+        private static final int SUB_BUCKETS = 16;
+        private static final int MAGNITUDES = 36;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(SUB_BUCKETS * MAGNITUDES);
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long micros) {
+            mCounts.incrementAndGet(indexOf(Math.max(0, micros)));
+            long max;
+            do {
+                max = mMax.get();
+            } while (micros > max && !mMax.compareAndSet(max, micros));
+        }
+
+        long percentile(double percent) {
+            long total = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                total += mCounts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percent / 100.0);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        long max() {
+            return mMax.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < mCounts.length(); i++) {
+                mCounts.set(i, 0);
+            }
+            mMax.set(0);
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - 3;
+            int sub = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+            int index = SUB_BUCKETS + (magnitude - 1) * (SUB_BUCKETS / 2) + sub;
+            return Math.min(index, SUB_BUCKETS * MAGNITUDES - 1);
+        }
+
+        private static long upperBoundOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = (index - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+            int sub = (index - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+            return ((long) (sub + 1) << magnitude) - 1;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.btchat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-device history sync check: HistorySync, FrameDecoder and
+ * MessageStore end to end, over the same ChatLink a ConnectedThread uses.
+ *
+ * Each scenario seeds store A and store B with a known overlap (messages
+ * both hold, plus some only one side holds), joins the two over a
+ * loopback socket and starts a sync from both ends at once, as happens
+ * when two phones connect. It then checks that:
+ *
+ * - both syncs report completion within SYNC_TIMEOUT_MS
+ * - the stores end with equal root digests and the expected size
+ * - each side received exactly the messages only the other held, when
+ *   nothing had to be dropped for capacity
+ * - for a small difference, less than a quarter of a full copy of both
+ *   stores crossed the link
+ *
+ * The "large" scenario sends messages of MAX_TEXT_SIZE both ways at once,
+ * more than either ring holds, so fetch responses are split by size and
+ * the writers must not wait on each other's readers.
+ *
+ * One line per scenario is printed with messages received and bytes sent
+ * per side; the exit code is 1 if any scenario failed.
+ *
+ *   javac -d out ChatMessage.java ChatProtocol.java MessageStore.java HistorySync.java \
+ *       ChatLink.java InboundRingBuffer.java SyncTest.java
+ *   java -cp out com.example.btchat.SyncTest
+ */
+public class SyncTest {
+
+    // How long one sync may take before the scenario fails
+    private static final long SYNC_TIMEOUT_MS = 30000;
+    // Spread of message timestamps, about 12 days
+    private static final int TIME_SPREAD_MS = 1 << 30;
+    private static final long START_TIME = 1700000000000L;
+    // Socket buffers kept small, like RFCOMM's, so a link that stops
+    // reading backs up into the other side's writes
+    private static final int SOCKET_BUFFER = 16 * 1024;
+
+    /**
+     * Two stores sharing some messages, each with some the other lacks.
+     */
+    private static class Scenario {
+        final String name;
+        final int shared;
+        final int onlyA;
+        final int onlyB;
+        // UTF-8 bytes of text per message, 0 for short texts
+        final int textSize;
+        // Whether the difference is small enough that the bytes moved
+        // must stay well below a full copy
+        final boolean small;
+
+        Scenario(String name, int shared, int onlyA, int onlyB, int textSize, boolean small) {
+            this.name = name;
+            this.shared = shared;
+            this.onlyA = onlyA;
+            this.onlyB = onlyB;
+            this.textSize = textSize;
+            this.small = small;
+        }
+    }
+
+    private static final Scenario[] SCENARIOS = {
+            new Scenario("identical", 1000, 0, 0, 0, true),
+            new Scenario("one-sided", 1000, 10, 0, 0, true),
+            new Scenario("small", 1000, 5, 3, 0, true),
+            new Scenario("disjoint", 0, 300, 200, 0, false),
+            new Scenario("empty-peer", 0, 500, 0, 0, false),
+            new Scenario("over-capacity", MessageStore.CAPACITY - 10, 30, 30, 0, false),
+            new Scenario("large", 100, 20, 20, ChatProtocol.MAX_TEXT_SIZE, false),
+    };
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = true;
+        for (Scenario scenario : SCENARIOS) {
+            passed &= new SyncTest().run(scenario);
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run(Scenario scenario) throws IOException, InterruptedException {
+        Random random = new Random(scenario.name.hashCode());
+
+        ServerSocket server = new ServerSocket();
+        server.setReceiveBufferSize(SOCKET_BUFFER);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        Socket client = new Socket();
+        client.setReceiveBufferSize(SOCKET_BUFFER);
+        client.setSendBufferSize(SOCKET_BUFFER);
+        client.connect(server.getLocalSocketAddress());
+        Socket accepted = server.accept();
+        accepted.setSendBufferSize(SOCKET_BUFFER);
+        server.close();
+
+        Side a = new Side("A", client);
+        Side b = new Side("B", accepted);
+
+        for (int i = 0; i < scenario.shared; i++) {
+            ChatMessage message = newMessage(random, "shared", i, 0);
+            a.mStore.add(message);
+            b.mStore.add(message);
+        }
+        for (int i = 0; i < scenario.onlyA; i++) {
+            a.mStore.add(newMessage(random, "a", i, scenario.textSize));
+        }
+        for (int i = 0; i < scenario.onlyB; i++) {
+            b.mStore.add(newMessage(random, "b", i, scenario.textSize));
+        }
+        long fullCopyBytes = encodedSize(a.mStore) + encodedSize(b.mStore);
+
+        a.start();
+        b.start();
+        boolean finished = a.await() & b.await();
+        a.close();
+        b.close();
+
+        long moved = a.mBytesSent.get() + b.mBytesSent.get();
+        boolean sameRoot = a.mStore.getSummary(0, 0).matches(b.mStore.getSummary(0, 0));
+        int expectedSize = Math.min(MessageStore.CAPACITY, scenario.shared + scenario.onlyA + scenario.onlyB);
+
+        StringBuilder problems = new StringBuilder();
+        if (!finished) {
+            problems.append(" timed out");
+        }
+        if (!sameRoot) {
+            problems.append(" root digests differ");
+        }
+        if (a.mStore.size() != expectedSize || b.mStore.size() != expectedSize) {
+            problems.append(" expected ").append(expectedSize).append(" messages each");
+        }
+        // Nothing falls out of retention below capacity, so each side gets
+        // exactly what only the other had
+        if (expectedSize < MessageStore.CAPACITY
+                && (a.mReceived.get() != scenario.onlyB || b.mReceived.get() != scenario.onlyA)) {
+            problems.append(" expected A to receive ").append(scenario.onlyB)
+                    .append(" and B ").append(scenario.onlyA);
+        }
+        if (scenario.small && moved * 4 > fullCopyBytes) {
+            problems.append(" moved more than a quarter of a full copy (").append(fullCopyBytes).append(" bytes)");
+        }
+
+        System.out.println(String.format("%-14s A=%d B=%d received A=%d B=%d  sent A=%s B=%s  full copy=%s  %s",
+                scenario.name, a.mStore.size(), b.mStore.size(), a.mReceived.get(), b.mReceived.get(),
+                formatBytes(a.mBytesSent.get()), formatBytes(b.mBytesSent.get()), formatBytes(fullCopyBytes),
+                problems.length() == 0 ? "ok" : "FAILED:" + problems));
+        return problems.length() == 0;
+    }
+
+    private static ChatMessage newMessage(Random random, String sender, int index, int textSize) {
+        StringBuilder text = new StringBuilder(sender + " message " + index);
+        while (text.length() < textSize) {
+            text.append('.');
+        }
+        return new ChatMessage(sender, text.toString(), START_TIME + random.nextInt(TIME_SPREAD_MS), false);
+    }
+
+    private static long encodedSize(MessageStore store) {
+        long size = 0;
+        for (ChatMessage message : store.getAll()) {
+            size += ChatProtocol.encodeChat(message).length;
+        }
+        return size;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        return String.format("%.1fKB", bytes / 1024.0);
+    }
+
+    /**
+     * One device: a store, a link and the sync running over it.
+     */
+    private static class Side implements ChatLink.Listener, InboundRingBuffer.EventHandler,
+            ChatProtocol.FrameListener, HistorySync.Listener {
+        final MessageStore mStore = new MessageStore();
+        final AtomicLong mBytesSent = new AtomicLong();
+        final AtomicInteger mReceived = new AtomicInteger();
+
+        private final String mName;
+        private final Socket mSocket;
+        private final ChatLink mLink;
+        private final HistorySync mSync;
+        private final ChatProtocol.FrameDecoder mDecoder = new ChatProtocol.FrameDecoder(this);
+        private final CountDownLatch mComplete = new CountDownLatch(1);
+        private final Thread mReader;
+        // Set once the stream failed, later reads are dropped
+        private boolean mFailed;
+
+        Side(String name, Socket socket) throws IOException {
+            mName = name;
+            mSocket = socket;
+            mLink = new ChatLink(socket.getInputStream(), socket.getOutputStream(), this);
+            mSync = new HistorySync(mStore, new HistorySync.Transport() {
+                @Override
+                public void send(byte[] frame) throws IOException {
+                    mBytesSent.addAndGet(frame.length);
+                    mLink.write(frame);
+                }
+            }, this);
+            mLink.addConsumer("SyncTest-" + name + "-frames", this,
+                    new InboundRingBuffer.BlockingWaitStrategy(), true);
+            mReader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    mLink.runReadLoop();
+                }
+            }, "SyncTest-" + name + "-read");
+        }
+
+        void start() throws IOException {
+            mReader.start();
+            mSync.start();
+        }
+
+        boolean await() throws InterruptedException {
+            return mComplete.await(SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void close() throws InterruptedException {
+            mLink.close();
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            mReader.join(5000);
+            mLink.joinConsumers(5000);
+        }
+
+        @Override
+        public void onEvent(InboundRingBuffer.Event event, long sequence, boolean endOfBatch) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mDecoder.feed(event.data, 0, event.length);
+            } catch (IOException e) {
+                System.err.println("SyncTest: " + mName + " bad frame: " + e.getMessage());
+                mFailed = true;
+                mLink.close();
+            }
+        }
+
+        @Override
+        public void onOverrun(long missed) {
+            System.err.println("SyncTest: " + mName + " consumer overrun by " + missed);
+            mFailed = true;
+            mLink.close();
+        }
+
+        @Override
+        public void onFrame(int type, byte[] body, int length) throws IOException {
+            if (!HistorySync.isSyncFrame(type)) {
+                throw new IOException("unexpected frame type " + type);
+            }
+            mSync.onFrame(type, body, length);
+        }
+
+        @Override
+        public void onMessagesSynced(List<ChatMessage> messages) {
+            mReceived.addAndGet(messages.size());
+        }
+
+        @Override
+        public void onSyncComplete(int received) {
+            mComplete.countDown();
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+        }
+    }
+}